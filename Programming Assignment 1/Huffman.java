@@ -1,8 +1,24 @@
 
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import net.datastructures.*;
 
@@ -14,6 +30,36 @@ import net.datastructures.*;
 
 public class Huffman {
 
+	/**
+	 * 
+	 * Formats of encoded files; the first byte of an encoded file tells which format it uses
+	 *
+	 */
+	public enum Format {
+		SERIALIZED(0xAC), // header is the frequency table written by ObjectOutputStream (whose streams start with byte 0xAC)
+		CANONICAL('C'),   // header is the packed list of code lengths, codes are canonical Huffman codes
+		BLOCKS('B'),      // input split in blocks encoded independently (in parallel) in CANONICAL format, with a BlockIndex at the end
+		INDEXED('I'),     // one code table for the whole input, with a BlockIndex of the bit where each block starts
+		STREAM('S'),      // sequence of frames of at most blockSize bytes each encoded in CANONICAL format, see encode(InputStream, OutputStream)
+		ADAPTIVE('A'),    // one pass adaptive Huffman codes (FGK), no header; see AdaptiveTree
+		CONTEXT('O'),     // order-1 model: the code table used for a character depends on the previous one, see encodeContext
+		LZ('L'),          // LZ77 literals and length/distance pairs, coded with one Huffman table each per block, see encodeLZ
+		BWT('W'),         // blocks transformed by Burrows-Wheeler, move-to-front and zero runs before Huffman coding, see encodeBWTBlock
+		INTERLEAVED('X'), // blocks coded with one table as 4 sub-streams that decode side by side, see encodeInterleavedBlock
+		WORDS('T'),       // symbols are single characters and the words and separators of a dictionary in the header, see encodeWords
+		PACKED('P'),      // fixed 2 or 4 bit indexes into the characters that occur, written instead of SERIALIZED or CANONICAL (also for
+		                  // blocks and frames) when at most 16 characters occur and that is no larger, or when asked for; see encodePacked
+		STORED('R');      // input copied as is, written instead of SERIALIZED or CANONICAL (also for blocks and frames) when coding would not
+		                  // make it smaller, or when asked for
+		
+		private final int tag; // first byte of files in this format
+		Format(int t) { tag = t; }
+		public static Format forTag(int t) { // format of a file starting with byte t, null if unknown
+			for (Format f : values()) if (f.tag == t) return f;
+			return null;
+		}
+	}
+
 	/**
 	 * 
 	 * Inner class Huffman Node to Store a node of Huffman Tree
@@ -40,36 +86,102 @@ public class Huffman {
 	/**
 	 * 
 	 * Auxiliary class to write bits to an OutputStream
-	 * Since files output one byte at a time, a buffer is used to group each output of 8-bits
+	 * Bits are accumulated in a 64-bit buffer; every 64 bits the buffer is moved as 8 bytes into a block of
+	 * BUFFER_SIZE bytes, and the block is written to the OutputStream when full
+	 * Bits can also be written straight into a ByteBuffer, without the block (BufferOverflowException if it is too small)
 	 * Method close should be invoked to flush half filed buckets by padding extra 0's
 	 */
 	private class OutBitStream {
 		OutputStream out;
-		int buffer;
-		int buffCount;
+		ByteBuffer target; // buffer written to instead of out, null when writing to out
+		long buffer;    // bits not yet moved to bytes, the last bit written is the least significant
+		int buffCount;  // number of bits in buffer (0..63)
+		byte[] bytes;   // complete bytes not yet written to out
+		int byteCount;  // number of bytes used in bytes
+		long written;   // number of bytes already written to out
 		public OutBitStream(OutputStream output) { // associates this to an OutputStream
 			out = output;
 			buffer=0;
 			buffCount=0;
+			bytes = new byte[BUFFER_SIZE];
+			byteCount = 0;
+			written = 0;
+		}
+		public OutBitStream(ByteBuffer output) { // associates this to a ByteBuffer, writing from its position
+			target = output;
+		}
+		public OutBitStream attach(ByteBuffer output) { // starts over writing to another ByteBuffer, so that this can be reused
+			target = output;
+			buffer = 0;
+			buffCount = 0;
+			written = 0;
+			return this;
+		}
+		public long position() { // number of bits written so far
+			return 8 * (written + byteCount) + buffCount;
 		}
 		public void writeBit(int i) throws IOException { // write one bit to Output Stream (using byte buffer)
-		    buffer=buffer<<1;
-		    buffer=buffer+i;
-		    buffCount++;
-		    if (buffCount==8) { 
-		    	out.write(buffer); 
-		    	//System.out.println("buffer="+buffer);
-		    	buffCount=0;
-		    	buffer=0;
-		    }
+			writeBits(i, 1);
+		}
+		
+		public void writeBits(long bits, int length) throws IOException { // write the length (<=63) lowest bits of bits, most significant first
+			if (buffCount + length < 64) { // whole code fits in buffer
+				buffer = (buffer << length) | bits;
+				buffCount += length;
+				return;
+			}
+			int first = 64 - buffCount; // leading bits of the code that complete the buffer
+			int rest = length - first;
+			writeLong((buffer << first) | (bits >>> rest));
+			buffer = bits & ((1L << rest) - 1);
+			buffCount = rest;
+		}
+		
+		private void writeLong(long word) throws IOException { // moves 64 bits to bytes, writing bytes to out when full
+			if (target != null) {
+				target.putLong(target.order() == ByteOrder.BIG_ENDIAN ? word : Long.reverseBytes(word));
+				written += 8;
+				return;
+			}
+			if (byteCount == bytes.length) {
+				out.write(bytes, 0, byteCount);
+				written += byteCount;
+				byteCount = 0;
+			}
+			for (int shift = 56; shift >= 0; shift -= 8) bytes[byteCount++] = (byte) (word >>> shift);
 		}
 		
 		public void close() throws IOException { // close output file, flushing half filled byte
+			finish();
+			if (out != null) out.close();
+		}
+		
+		public void finish() throws IOException { // flushes all bits, padding the last byte with 0's, leaving output open
+			if (target != null) {
+				for (; buffCount >= 8; written++) target.put((byte) (buffer >>> (buffCount -= 8)));
+				if (buffCount > 0) {
+					target.put((byte) (buffer << (8 - buffCount)));
+					written++;
+					buffCount = 0;
+				}
+				return;
+			}
+			if (byteCount + 8 > bytes.length) {
+				out.write(bytes, 0, byteCount);
+				written += byteCount;
+				byteCount = 0;
+			}
+			while (buffCount >= 8) { // whole bytes left in buffer
+				buffCount -= 8;
+				bytes[byteCount++] = (byte) (buffer >>> buffCount);
+			}
 			if (buffCount>0) { //flush the remaining bits by padding 0's
-				buffer=buffer<<(8-buffCount);
-				out.write(buffer);
+				bytes[byteCount++] = (byte) (buffer << (8 - buffCount));
+				buffCount = 0;
 			}
-			out.close();
+			out.write(bytes, 0, byteCount);
+			written += byteCount;
+			byteCount = 0;
 		}
 		
  	}
@@ -77,32 +189,681 @@ public class Huffman {
 	/**
 	 * 
 	 * Auxiliary class to read bits from a file
-	 * Since we must read one byte at a time, a buffer is used to group each input of 8-bits
+	 * Bytes are read in blocks of BUFFER_SIZE and kept in a 64-bit window so that
+	 * several bits can be looked at (peekBits) before deciding how many to consume (skipBits)
+	 * Once the input stream ends the window is padded with 0's, which pastEnd() reports
+	 * Bytes can also be read straight from a ByteBuffer, without the block
 	 * 
 	 */
 	private class InBitStream {
 		InputStream in;
-		int buffer;    // stores a byte read from input stream
-		int buffCount; // number of bits already read from buffer
+		ByteBuffer source; // buffer read from instead of in, null when reading from in
+		byte[] bytes;   // block of bytes read from input stream
+		int bytePos;    // next byte of bytes to move into the window
+		int byteLimit;  // number of valid bytes in bytes
+		long window;    // bits not read yet, next bit to read is the most significant one
+		int windowBits; // number of bits stored in window
+		int padBits;    // number of 0 bits added to window after input stream ended
+		boolean ended;  // true once input stream returned -1
 		public InBitStream(InputStream input) { // associates this to an input stream
 			in = input;
-			buffer=0; 
-			buffCount=8;
-		}
-		public int readBit() throws IOException { // read one bit to Output Stream (using byte buffer)
-			if (buffCount==8) { // current buffer has already been read must bring next byte
-				buffCount=0;
-				buffer=in.read(); // read next byte
-				if (buffer==-1) return -1; // indicates stream ended
-			}
-			int aux=128>>buffCount; // shifts 1000000 buffcount times so aux has a 1 is in position of bit to read
-			//System.out.println("aux="+aux+"buffer="+buffer);
-			buffCount++;
-			if ((aux&buffer)>0) return 1; // this checks whether bit buffcount of buffer is 1
-			else return 0;
-			
+			bytes = new byte[BUFFER_SIZE];
+		}
+		public InBitStream(ByteBuffer input) { // associates this to a ByteBuffer, reading from its position up to its limit
+			source = input;
+		}
+		public InBitStream attach(ByteBuffer input) { // starts over reading from another ByteBuffer, so that this can be reused
+			source = input;
+			window = 0;
+			windowBits = 0;
+			padBits = 0;
+			ended = false;
+			return this;
+		}
+		private void refill() throws IOException { // tops up window to at least 57 bits
+			if (source != null && source.remaining() >= 8) { // as many whole bytes as fit, from one 8 byte load
+				long word = source.getLong(source.position());
+				if (source.order() == ByteOrder.LITTLE_ENDIAN) word = Long.reverseBytes(word);
+				int count = (64 - windowBits) >>> 3;
+				window |= (word >>> (64 - 8 * count)) << (64 - windowBits - 8 * count);
+				source.position(source.position() + count);
+				windowBits += 8 * count;
+				return;
+			}
+			while (source != null && windowBits <= 56) {
+				if (source.hasRemaining()) window |= (long) (source.get() & 0xFF) << (56 - windowBits);
+				else padBits += 8; // no more input, pad with 0's
+				windowBits += 8;
+			}
+			while (windowBits <= 56) {
+				if (bytePos == byteLimit) {
+					if (!ended) {
+						byteLimit = in.read(bytes, 0, bytes.length);
+						bytePos = 0;
+						if (byteLimit <= 0) ended = true;
+					}
+					if (ended) { // no more input, pad with 0's
+						byteLimit = 0;
+						padBits += 8;
+						windowBits += 8;
+						continue;
+					}
+				}
+				window |= (long) (bytes[bytePos++] & 0xFF) << (56 - windowBits);
+				windowBits += 8;
+			}
+		}
+		public int readBit() throws IOException { // read one bit from input stream, -1 if stream ended
+			if (windowBits - padBits <= 0) {
+				refill();
+				if (windowBits - padBits <= 0) return -1; // indicates stream ended
+			}
+			int bit = (int) (window >>> 63);
+			window <<= 1;
+			windowBits--;
+			return bit;
+		}
+		public int peekBits(int n) throws IOException { // next n bits (1<=n<=32) without consuming them
+			if (windowBits < n) refill();
+			return (int) (window >>> (64 - n));
+		}
+		public void skipBits(int n) { // consumes n bits already looked at with peekBits
+			window <<= n;
+			windowBits -= n;
+		}
+		public boolean pastEnd() { // true if bits consumed went beyond the end of input stream
+			return windowBits < padBits;
+		}
+	}
+	
+	/**
+	 * 
+	 * Huffman tree stored as arrays indexed by node id instead of one object per node, so that the whole tree
+	 * (at most 2*257-1 nodes) fits in a few cache lines and can be rebuilt in place without allocating
+	 * symbol[n] is the character of leaf n or -1 if n is an internal node; left[n]/right[n] are the 0/1 children
+	 * of internal node n, -1 if missing (possible for canonical codes that do not fill the tree)
+	 *
+	 */
+	private class FlatTree {
+		short[] left, right, symbol;
+		int size; // number of nodes in use
+		int root; // id of the root node
+		long[] code, nextCode = new long[MAX_CODE_LENGTH + 1]; // work arrays of buildCanonical, so that rebuilding allocates nothing
+		public FlatTree(int alphabetSize) {
+			left = new short[2 * alphabetSize - 1];
+			right = new short[left.length];
+			symbol = new short[left.length];
+			code = new long[alphabetSize];
+		}
+		public boolean isLeaf(int node) { return symbol[node] != -1; }
+		private int addNode(int character, int leftChild, int rightChild) { // returns id of the new node
+			if (size == symbol.length) { // only reached by trees with more characters than given to the constructor
+				left = Arrays.copyOf(left, 2 * size);
+				right = Arrays.copyOf(right, 2 * size);
+				symbol = Arrays.copyOf(symbol, 2 * size);
+			}
+			left[size] = (short) leftChild;
+			right[size] = (short) rightChild;
+			symbol[size] = (short) character;
+			return size++;
+		}
+		public void build(HuffmanTreeNode encodingTreeRoot) { // replaces this tree by a copy of a linked tree
+			size = 0;
+			root = copy(encodingTreeRoot);
+		}
+		private int copy(HuffmanTreeNode node) {
+			if (node == null) return -1;
+			if (node.isLeaf()) return addNode(node.getChar(), -1, -1);
+			int l = copy(node.getLeft());
+			int r = copy(node.getRight());
+			return addNode(-1, l, r);
+		}
+		public void buildCanonical(int[] codeLength) throws IOException { // replaces this tree by the canonical tree of the code lengths
+			if (code.length < codeLength.length) code = new long[codeLength.length];
+			buildCanonicalCodes(codeLength, code, nextCode);
+			size = 0;
+			root = addNode(-1, -1, -1);
+			for (int c = 0; c < codeLength.length; c++) {
+				if (codeLength[c] == 0) continue;
+				int node = root;
+				for (int j = codeLength[c] - 1; j >= 0; j--) { // walk/create nodes for all bits, the last one is the leaf
+					boolean one = ((code[c] >>> j) & 1) == 1;
+					int child = one ? right[node] : left[node];
+					if (child == -1) {
+						child = addNode(j == 0 ? c : -1, -1, -1);
+						if (one) right[node] = (short) child; else left[node] = (short) child;
+					} else if (j == 0 || isLeaf(child)) throw new IOException("Invalid code lengths, code is a prefix of another");
+					node = child;
+				}
+			}
+			if (size == 1) throw new IOException("Invalid code lengths, no character has a code");
+		}
+	}
+	
+	/**
+	 * 
+	 * Lookup table to decode up to TABLE_BITS bits at once
+	 * For each pattern p of TABLE_BITS bits, table[p] stores (length<<16 | character) for the code p starts with
+	 * If the code is longer than TABLE_BITS, table[p] stores -(n+1) where n is the node of tree
+	 * reached after walking TABLE_BITS bits; decoding continues bit by bit from there (slow path)
+	 * Patterns that start no code (possible when the tree has a missing child) store INVALID
+	 * multi[p] stores every complete code p starts with, up to MULTI_SYMBOLS of them, as
+	 * (count<<52 | length<<48 | characters, first one in the low byte), so that short codes decode several at a time;
+	 * count is 0 if p starts with "end-of-file" (or another symbol past 255) or a code longer than TABLE_BITS, which are left to table
+	 * multi is only built for decoders that read it (decodeDataTable and decode(ByteBuffer, ByteBuffer)), otherwise it stays null
+	 * The table can be rebuilt for another tree without allocating
+	 *
+	 */
+	private class DecodeTable {
+		int[] table = new int[1 << TABLE_BITS];
+		long[] multi;     // allocated by the first build with multi
+		boolean hasMulti; // true if some entry of multi holds more than one character, otherwise multi is not worth a lookup
+		FlatTree tree;
+		public DecodeTable() { }
+		public DecodeTable(FlatTree t, boolean withMulti) { build(t, withMulti); }
+		public void build(FlatTree t, boolean withMulti) { // replaces the contents of this table by the codes of t, filling multi too if withMulti
+			tree = t;
+			Arrays.fill(table, INVALID);
+			fill(t.root, 0, 0);
+			hasMulti = false;
+			if (withMulti) fillMulti();
+		}
+		private void fillMulti() {
+			if (multi == null) multi = new long[1 << TABLE_BITS];
+			for (int p = 0; p < table.length; p++) {
+				long entry = 0;
+				int count = 0, used = 0;
+				while (count < MULTI_SYMBOLS) {
+					int next = table[(p << used) & (table.length - 1)]; // bits past the end of p read as 0, so the code must end within p
+					if (next < 0 || (next & 0xFFFF) >= 256 || used + (next >>> 16) > TABLE_BITS) break;
+					entry |= (long) (next & 0xFF) << (8 * count++);
+					used += next >>> 16;
+				}
+				multi[p] = ((long) count << 52) | ((long) used << 48) | entry;
+				if (count > 1) hasMulti = true;
+			}
+		}
+		private void fill(int node, int code, int length) {
+			if (node == -1) return; // no code starts this way
+			if (tree.isLeaf(node)) { // all patterns starting with code decode to this character
+				int first = code << (TABLE_BITS - length);
+				int last = first + (1 << (TABLE_BITS - length));
+				Arrays.fill(table, first, last, (length << 16) | tree.symbol[node]);
+			} else if (length == TABLE_BITS) { // code continues past the table
+				table[code] = -(node + 1);
+			} else {
+				fill(tree.left[node], code << 1, length + 1);
+				fill(tree.right[node], (code << 1) | 1, length + 1);
+			}
+		}
+		public int decodeSlow(InBitStream bitStream, int entry) throws IOException { // finishes the code of a negative entry peeked from bitStream, returns its symbol
+			if (entry == INVALID) throw new IOException("Encoded data contains an invalid code");
+			bitStream.skipBits(TABLE_BITS);
+			int node = -entry - 1;
+			while (!tree.isLeaf(node)) {
+				int bit = bitStream.readBit();
+				if (bit == -1) throw new EOFException("Encoded data ended before end-of-file character");
+				node = (bit == 0) ? tree.left[node] : tree.right[node];
+				if (node == -1) throw new IOException("Encoded data contains an invalid code");
+			}
+			return tree.symbol[node];
+		}
+	}
+	
+	/**
+	 * 
+	 * Task encoding one block of a BLOCKS file in CANONICAL format, or of a BWT or INTERLEAVED file, run on a ForkJoinPool
+	 *
+	 */
+	@SuppressWarnings("serial") // tasks are never serialized
+	private class BlockEncoder extends RecursiveTask<byte[]> {
+		ByteBuffer block;
+		Format format;
+		public BlockEncoder(ByteBuffer b, Format f) {
+			block = b;
+			format = f;
+		}
+		protected byte[] compute() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(block.remaining() / 2);
+			try {
+				if (format == Format.BWT) encodeBWTBlock(block, out);
+				else if (format == Format.INTERLEAVED) encodeInterleavedBlock(block, out);
+				else encodeCanonical(new ByteBuffer[] { block }, out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return out.toByteArray();
+		}
+		public byte[] result() throws IOException { // waits for the encoded block
+			try {
+				return join();
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * Task decoding one block of a BWT or INTERLEAVED file, run on a ForkJoinPool
+	 *
+	 */
+	@SuppressWarnings("serial") // tasks are never serialized
+	private class FrameDecoder extends RecursiveTask<byte[]> {
+		byte[] encoded;
+		int length;
+		Format format;
+		public FrameDecoder(byte[] e, int l, Format f) {
+			encoded = e;
+			length = l;
+			format = f;
+		}
+		protected byte[] compute() {
+			try {
+				return (format == Format.BWT) ? decodeBWTBlock(encoded, length) : decodeInterleavedBlock(encoded, length);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		public byte[] result() throws IOException { // waits for the decoded block
+			try {
+				return join();
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * Index stored at the end of BLOCKS and INDEXED files, so that blocks can be decoded independently:
+	 * block count (int), original length (long), for each block the bit where it starts and the offset
+	 * of its first byte in the original (two longs), and last the position of the index (long)
+	 *
+	 */
+	private class BlockIndex {
+		int blockSize;       // number of original bytes in each block but the last
+		long originalLength; // number of bytes of the original file
+		long[] bitOffset;    // block k is encoded from bit bitOffset[k] of the file up to bitOffset[k+1] (exclusive)
+		long[] outputOffset; // block k decodes to bytes outputOffset[k] to outputOffset[k+1]-1 of the original
+		public int blockCount() { return bitOffset.length - 1; }
+	}
+	
+	/**
+	 * 
+	 * Task decoding one block of a BLOCKS or INDEXED file into its own region of the output file, run on a ForkJoinPool
+	 *
+	 */
+	@SuppressWarnings("serial") // tasks are never serialized
+	private class BlockDecoder extends RecursiveAction {
+		FileChannel in, out;
+		BlockIndex index;
+		int k;
+		FlatTree root;            // tree shared by all blocks (INDEXED), null if the block starts with its own header (BLOCKS)
+		DecodeTable decodeTable;  // table built from root, null if decoding walks the tree
+		public BlockDecoder(FileChannel input, FileChannel output, BlockIndex blockIndex, int block, FlatTree r, DecodeTable d) {
+			in = input;
+			out = output;
+			index = blockIndex;
+			k = block;
+			root = r;
+			decodeTable = d;
+		}
+		protected void compute() {
+			try {
+				OutputStream output = new BufferedOutputStream(new ChannelOutputStream(out, index.outputOffset[k]), BUFFER_SIZE);
+				decodeBlock(in, index, k, root, decodeTable, output, index.outputOffset[k + 1] - index.outputOffset[k]);
+				output.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * Tree, table and code lengths rebuilt in place for each block of a BLOCKS file that a thread decodes,
+	 * or for each call of decode(ByteBuffer, ByteBuffer) with the PACKED tables, so that they decode without allocating them
+	 *
+	 */
+	private class DecodeScratch {
+		FlatTree tree = new FlatTree(257);
+		DecodeTable table = new DecodeTable();
+		int[] codeLength = new int[257];
+		InBitStream bitStream = new InBitStream((ByteBuffer) null); // attached to each input buffer in turn
+		long[] expand = new long[256];  // characters of each encoded byte and alphabet of PACKED inputs
+		byte[] alphabet = new byte[16];
+	}
+	
+	/**
+	 * 
+	 * Work arrays of the steps from input to code table (countFrequencies, buildCodeLengths, buildCodeTable, ...)
+	 * for an alphabet of a given size; encode(ByteBuffer, ByteBuffer) keeps one so that its calls allocate nothing,
+	 * other callers use the versions of these steps that allocate their own
+	 * Arrays returned by a step are the ones of this object, overwritten by the next call of that step
+	 *
+	 */
+	private class EncodeScratch {
+		long[] freq;
+		int[][] lanes = new int[4][256]; // sub-histograms of countFrequencies, all 0 between calls
+		int[] codeLength, order, sorted; // order and sorted: passes of the radix sort of sortByFrequency
+		int[] count = new int[257];
+		long[] weight;                   // weights and parents of the trees merged by buildCodeLengths
+		int[] parent;
+		long[] codeTable, nextCode = new long[MAX_CODE_LENGTH + 1];
+		ByteBuffer[] input = new ByteBuffer[1];
+		OutBitStream bitStream = new OutBitStream((ByteBuffer) null); // attached to each output buffer in turn
+		public EncodeScratch(int alphabetSize) {
+			freq = new long[alphabetSize];
+			codeLength = new int[alphabetSize];
+			order = new int[alphabetSize];
+			sorted = new int[alphabetSize];
+			weight = new long[2 * alphabetSize - 1];
+			parent = new int[2 * alphabetSize - 1];
+			codeTable = new long[alphabetSize];
+		}
+	}
+	
+	/**
+	 * 
+	 * OutputStream writing to a FileChannel from a given position on, so that several threads can write
+	 * to different regions of the same file
+	 *
+	 */
+	private class ChannelOutputStream extends OutputStream {
+		FileChannel channel;
+		long position;
+		public ChannelOutputStream(FileChannel c, long start) {
+			channel = c;
+			position = start;
+		}
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining()) position += channel.write(buffer, position);
 		}
-
+	}
+	
+	/**
+	 * 
+	 * Adaptive Huffman tree (algorithm FGK) over characters 0..256, updated after each character so that
+	 * encoder and decoder build the same tree without a frequency table
+	 * Nodes are kept in slots 0..2*258-2 (257 character leaves and NYT) ordered by weight (sibling property), the root being the last slot;
+	 * the NYT ("not yet transmitted") leaf stands for all characters not seen yet: it is encoded by its code
+	 * followed by the character in 9 bits
+	 *
+	 */
+	private class AdaptiveTree {
+		static final int SLOTS = 2 * 258 - 1;
+		int[] weight = new int[SLOTS];
+		int[] parent = new int[SLOTS];
+		int[] left = new int[SLOTS];     // left/0 child slot, -1 for leaves
+		int[] right = new int[SLOTS];    // right/1 child slot
+		int[] character = new int[SLOTS]; // character of a leaf slot, -1 for internal nodes and NYT
+		int[] leaf = new int[257];       // slot of the leaf of each character, -1 if not seen yet
+		int nyt;                         // slot of the NYT leaf
+		int[] path = new int[SLOTS];     // bits of a code from leaf to root, used by encode
+		public AdaptiveTree() {
+			Arrays.fill(leaf, -1);
+			nyt = SLOTS - 1; // tree starts as a single NYT leaf
+			parent[nyt] = -1;
+			left[nyt] = -1;
+			right[nyt] = -1;
+			character[nyt] = -1;
+		}
+		public void encode(int c, OutBitStream bitStream) throws IOException { // write code of c and update tree
+			int node = (leaf[c] == -1) ? nyt : leaf[c];
+			int length = 0;
+			for (; parent[node] != -1; node = parent[node]) path[length++] = (right[parent[node]] == node) ? 1 : 0;
+			while (length > 0) bitStream.writeBit(path[--length]);
+			if (leaf[c] == -1) bitStream.writeBits(c, 9);
+			update(c);
+		}
+		public int decode(InBitStream bitStream) throws IOException { // read one character and update tree
+			int node = SLOTS - 1;
+			while (left[node] != -1) {
+				int bit = bitStream.readBit();
+				if (bit == -1) throw new EOFException("Encoded data ended before end-of-file character");
+				node = (bit == 0) ? left[node] : right[node];
+			}
+			int c = character[node];
+			if (node == nyt) {
+				c = bitStream.peekBits(9);
+				bitStream.skipBits(9);
+				if (bitStream.pastEnd()) throw new EOFException("Encoded data ended before end-of-file character");
+				if (c > 256 || leaf[c] != -1) throw new IOException("Encoded data contains an invalid character");
+			}
+			update(c);
+			return c;
+		}
+		private void update(int c) { // adds 1 to the weight of c, keeping nodes ordered by weight
+			if (leaf[c] == -1) { // NYT becomes an internal node with children NYT and a leaf for c
+				int old = nyt;
+				nyt = old - 2;
+				leaf[c] = old - 1;
+				for (int n = old - 2; n <= old - 1; n++) {
+					weight[n] = 0;
+					parent[n] = old;
+					left[n] = -1;
+					right[n] = -1;
+					character[n] = -1;
+				}
+				character[old - 1] = c;
+				left[old] = nyt;
+				right[old] = old - 1;
+			}
+			int node = leaf[c];
+			while (node != -1) {
+				int leader = node; // last slot with the same weight
+				while (leader + 1 < SLOTS && weight[leader + 1] == weight[node]) leader++;
+				if (leader != node && leader != parent[node]) {
+					swap(node, leader);
+					node = leader;
+				}
+				weight[node]++;
+				node = parent[node];
+			}
+		}
+		private void swap(int a, int b) { // exchanges the subtrees in slots a and b (which have the same weight)
+			int t = left[a]; left[a] = left[b]; left[b] = t;
+			t = right[a]; right[a] = right[b]; right[b] = t;
+			t = character[a]; character[a] = character[b]; character[b] = t;
+			relink(a);
+			relink(b);
+		}
+		private void relink(int n) { // points children, or leaf/nyt, back to slot n after a swap
+			if (left[n] != -1) {
+				parent[left[n]] = n;
+				parent[right[n]] = n;
+			} else if (character[n] != -1) {
+				leaf[character[n]] = n;
+			} else {
+				nyt = n;
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * LZ77 match finder over a sliding window of LZ_WINDOW bytes of one ByteBuffer
+	 * Positions are chained by the hash of their first LZ_MIN_MATCH bytes: head[h] is the last position with hash h
+	 * and prev[i % LZ_WINDOW] the position before i with the same hash; at most LZ_MAX_CHAIN candidates are compared
+	 * A block of the buffer is parsed into tokens: a character c (0..255) or a match (length << 16 | distance)
+	 * meaning "copy length bytes starting distance bytes back"; matches may refer to earlier blocks of the buffer
+	 * Each block is copied with the window before it into a heap array, where matches are compared 8 bytes at a time
+	 *
+	 */
+	private class LZParser {
+		ByteBuffer data;
+		byte[] bytes = new byte[0]; // copy of data from position base on, holding the block being parsed and the window before it
+		ByteBuffer words;           // view of bytes to compare 8 bytes at once
+		int base;
+		int[] head = new int[1 << LZ_HASH_BITS];
+		int[] prev = new int[LZ_WINDOW];
+		int matchDistance; // distance of the match found by longestMatch
+		public LZParser(ByteBuffer buffer) {
+			data = buffer;
+			Arrays.fill(head, -1);
+		}
+		private void load(int start, int end) { // copies data from LZ_WINDOW bytes before start (or its position) to end into bytes
+			base = Math.max(data.position(), start - LZ_WINDOW);
+			if (bytes.length < end - base) {
+				bytes = new byte[end - base];
+				words = ByteBuffer.wrap(bytes);
+			}
+			data.get(base, bytes, 0, end - base);
+		}
+		private int hash(int i) { // hash of the LZ_MIN_MATCH bytes at i
+			int j = i - base;
+			int key = ((bytes[j] & 0xFF) << 16) | ((bytes[j + 1] & 0xFF) << 8) | (bytes[j + 2] & 0xFF);
+			return (key * 0x9E3779B1) >>> (32 - LZ_HASH_BITS);
+		}
+		private int matchLength(int a, int b, int maxLength) { // number of equal bytes at indexes a < b of bytes, at most maxLength
+			int length = 0;
+			while (length + 8 <= maxLength) {
+				long difference = words.getLong(a + length) ^ words.getLong(b + length);
+				if (difference != 0) return length + (Long.numberOfLeadingZeros(difference) >>> 3); // big endian: first byte is the highest
+				length += 8;
+			}
+			while (length < maxLength && bytes[a + length] == bytes[b + length]) length++;
+			return length;
+		}
+		private void insert(int i, int limit) { // adds position i to the chains
+			if (i + LZ_MIN_MATCH > limit) return;
+			int h = hash(i);
+			prev[i & (LZ_WINDOW - 1)] = head[h];
+			head[h] = i;
+		}
+		private int longestMatch(int i, int limit) { // length of the longest match at i (0 if none), its distance in matchDistance
+			if (i + LZ_MIN_MATCH > limit) return 0;
+			int maxLength = Math.min(LZ_MAX_MATCH, limit - i);
+			int best = 0;
+			int candidate = head[hash(i)];
+			for (int chain = LZ_MAX_CHAIN; candidate >= 0 && i - candidate <= LZ_WINDOW && chain > 0; chain--) {
+				if (bytes[candidate - base + best] == bytes[i - base + best]) { // cannot beat best otherwise
+					int length = matchLength(candidate - base, i - base, maxLength);
+					if (length > best) {
+						best = length;
+						matchDistance = i - candidate;
+						if (length == maxLength) break;
+					}
+				}
+				int next = prev[candidate & (LZ_WINDOW - 1)];
+				if (next >= candidate) break; // slot was reused by a position out of the window
+				candidate = next;
+			}
+			return best >= LZ_MIN_MATCH ? best : 0;
+		}
+		public int parse(int start, int end, int[] token) { // parses bytes start..end-1 into token, returns number of tokens
+			load(start, end);
+			int n = 0;
+			int i = start;
+			int length = 0, distance = 0;
+			boolean searched = false; // true if the match at i was already looked for
+			while (i < end) {
+				if (!searched) {
+					length = longestMatch(i, end);
+					distance = matchDistance;
+					insert(i, end);
+				}
+				searched = false;
+				if (length == 0) {
+					token[n++] = bytes[i++ - base] & 0xFF;
+					continue;
+				}
+				if (length < LZ_LAZY_LENGTH) { // lazy matching: a longer match at the next position is worth a literal
+					int nextLength = longestMatch(i + 1, end);
+					insert(i + 1, end);
+					if (nextLength > length) {
+						token[n++] = bytes[i++ - base] & 0xFF;
+						length = nextLength;
+						distance = matchDistance;
+						searched = true;
+						continue;
+					}
+					for (int j = i + 2; j < i + length; j++) insert(j, end);
+				} else {
+					for (int j = i + 1; j < i + length; j++) insert(j, end);
+				}
+				token[n++] = (length << 16) | distance;
+				i += length;
+			}
+			return n;
+		}
+	}
+	
+	private static final int BUFFER_SIZE = 1 << 16; // size of byte blocks read from/written to files
+	private static final int TABLE_BITS = 12;       // number of bits decoded by one lookup in DecodeTable
+	private static final int LENGTH_LIMIT = TABLE_BITS; // longest code written in CANONICAL based formats, so their DecodeTable needs no slow path
+	private static final int INVALID = Integer.MIN_VALUE; // DecodeTable entry for patterns that start no code
+	private static final int MULTI_SYMBOLS = 6;     // most characters stored in one entry of DecodeTable.multi (6 codes of 2 bits fill TABLE_BITS)
+	private static final int MAX_CODE_LENGTH = 58;  // codes are packed with their 6-bit length in a long (see buildCodeTable)
+	private static final long MAP_SEGMENT = 1 << 30; // largest piece of a file mapped by one MappedByteBuffer
+	private static final int CONTEXT_GROUP_BITS = 5; // CONTEXT format has at most 1<<CONTEXT_GROUP_BITS code tables
+	
+	// LZ format: deflate's alphabets, symbols 0..255 are characters, 256 ends a block, 257.. are match lengths, followed by a distance symbol
+	private static final int LZ_WINDOW = 1 << 15;    // largest match distance
+	private static final int LZ_MIN_MATCH = 3;
+	private static final int LZ_MAX_MATCH = 258;
+	private static final int LZ_HASH_BITS = 15;
+	private static final int LZ_MAX_CHAIN = 64;      // largest number of earlier positions compared when looking for a match
+	private static final int LZ_LAZY_LENGTH = 32;    // matches at least this long are taken without looking at the next position
+	private static final int LZ_LITERALS = 286;      // size of the literal/length alphabet
+	private static final int LZ_DISTANCES = 30;      // size of the distance alphabet
+	private static final int[] LZ_LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	private static final int[] LZ_LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] LZ_DISTANCE_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769,
+			1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] LZ_DISTANCE_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+	private static final int BWT_RUNA = 0, BWT_RUNB = 1; // BWT format: digits 1 and 2 of the length of a run of zeros in bijective base 2
+	private static final int BWT_END = 257;          // BWT format: end of block; move-to-front index k>0 is symbol k+1
+	private static final int BWT_MAX_BLOCK = 1 << 23; // BWT format: largest block, so that a row number fits in 24 bits when decoding
+	private static final int WORDS_MAX_TOKEN = 255;  // WORDS format: longest token, so that its length fits in a byte
+	private static final int WORDS_MAX_DICTIONARY = (1 << 14) - 257; // WORDS format: most dictionary tokens, so that trees fit in FlatTree's shorts
+	private static final int WORDS_LENGTH_LIMIT = 20; // WORDS format: longest code; codes past TABLE_BITS take the slow path of DecodeTable
+	private static final int[] LZ_LENGTH_CODE = symbolTable(LZ_LENGTH_BASE, LZ_LENGTH_EXTRA, LZ_MAX_MATCH + 1);
+	private static final int[] LZ_DISTANCE_CODE = symbolTable(LZ_DISTANCE_BASE, LZ_DISTANCE_EXTRA, LZ_WINDOW + 1);
+	
+	private boolean tableDecoding = true; // decode using DecodeTable instead of walking the tree bit by bit
+	private int blockSize = 1 << 20;      // number of input bytes per block in BLOCKS format
+	private EncodeScratch bufferEncode;   // work arrays of encode(ByteBuffer, ByteBuffer) and decode(ByteBuffer, ByteBuffer), created on first use
+	private DecodeScratch bufferDecode;
+	private final ThreadLocal<DecodeScratch> decodeScratch = ThreadLocal.withInitial(() -> new DecodeScratch()); // for blocks of BLOCKS files
+	
+	/**
+	 * Selects the decoder used by decode; both produce identical output
+	 * @param useTable true to decode with lookup tables, false to walk the Huffman tree one bit at a time
+	 */
+	public void setTableDecoding(boolean useTable) {
+		tableDecoding = useTable;
+	}
+	
+	/**
+	 * Sets the number of input bytes per block used by encode in BLOCKS, INDEXED, STREAM, LZ, BWT and INTERLEAVED formats (default 1 MiB)
+	 * @param size a power of 2 between 2^10 and 2^30, so that blocks never straddle two pieces of a mapped file
+	 */
+	public void setBlockSize(int size) { // also the frame size of STREAM format
+		if (Integer.bitCount(size) != 1 || size < (1 << 10) || size > MAP_SEGMENT)
+			throw new IllegalArgumentException("Block size must be a power of 2 between 1024 and " + MAP_SEGMENT);
+		blockSize = size;
+	}
+	
+	/**
+	 * Builds the table giving the symbol of each value for an alphabet where symbol k stands for values
+	 * base[k] .. base[k] + 2^extra[k] - 1 (the value is sent as the symbol followed by extra[k] bits)
+	 * @param base input parameter, smallest value of each symbol
+	 * @param extra input parameter, number of extra bits of each symbol
+	 * @param size size of the table
+	 * @return array table where table[v] is the symbol of value v (later symbols win where ranges overlap)
+	 */
+	private static int[] symbolTable(int[] base, int[] extra, int size) {
+		int[] table = new int[size];
+		for (int k = 0; k < base.length; k++) {
+			for (int v = base[k]; v < Math.min(size, base[k] + (1 << extra[k])); v++) table[v] = k;
+		}
+		return table;
 	}
 	
 	/**
@@ -125,6 +886,213 @@ public class Huffman {
 		return freqTable;
 	}
 
+	/**
+	 * Builds the frequency table from the frequencies counted by countFrequencies, with the same specs as buildFrequencyTable(InputStream)
+	 * @param freq input parameter, freq[i] = number of times character i appears in input and freq[256] = 1
+	 * @return freqTable such that freqTable.get(i) = number of times character i appears in input and freqTable.get(256) = 1
+	 * @throws IOException if a frequency does not fit in an Integer
+	 */
+	private ArrayList<Integer> buildFrequencyTable(long[] freq) throws IOException {
+		ArrayList<Integer> freqTable = new ArrayList<>(257);
+		for (int c = 0; c < 257; c++) {
+			if (freq[c] > Integer.MAX_VALUE) throw new IOException("Input too large for a frequency table of Integers");
+			freqTable.add(c, (int) freq[c]);
+		}
+		return freqTable;
+	}
+	
+	/**
+	 * Counts the frequency of each character of the input into a primitive array
+	 * Bytes are read 8 at a time and counted in 4 interleaved sub-histograms, so that increments of the same
+	 * counter (on runs of one byte) do not wait on each other; sub-histograms are added up after each piece
+	 * @param input the pieces of the input, in order, each of at most MAP_SEGMENT bytes so int counters cannot overflow
+	 * @return array freq where freq[i] = number of times character i appears in input and freq[256] = 1 ("end-of-file")
+	 */
+	private long[] countFrequencies(ByteBuffer[] input) {
+		return countFrequencies(input, new EncodeScratch(257));
+	}
+	
+	/**
+	 * Counts the frequency of each character of the input like countFrequencies(ByteBuffer[]), in work arrays
+	 * @param input the pieces of the input, in order
+	 * @param scratch work parameter for an alphabet of 257 symbols, whose freq array is returned
+	 * @return array freq where freq[i] = number of times character i appears in input and freq[256] = 1 ("end-of-file")
+	 */
+	private long[] countFrequencies(ByteBuffer[] input, EncodeScratch scratch) {
+		long[] freq = scratch.freq;
+		Arrays.fill(freq, 0);
+		int[] c0 = scratch.lanes[0], c1 = scratch.lanes[1], c2 = scratch.lanes[2], c3 = scratch.lanes[3];
+		for (ByteBuffer segment : input) {
+			int i = segment.position();
+			int limit = segment.limit();
+			for (; i + 8 <= limit; i += 8) {
+				long word = segment.getLong(i);
+				c0[(int) (word >>> 56)]++;
+				c1[(int) (word >>> 48) & 0xFF]++;
+				c2[(int) (word >>> 40) & 0xFF]++;
+				c3[(int) (word >>> 32) & 0xFF]++;
+				c0[(int) (word >>> 24) & 0xFF]++;
+				c1[(int) (word >>> 16) & 0xFF]++;
+				c2[(int) (word >>> 8) & 0xFF]++;
+				c3[(int) word & 0xFF]++;
+			}
+			for (; i < limit; i++) c0[segment.get(i) & 0xFF]++;
+			for (int c = 0; c < 256; c++) freq[c] += (long) c0[c] + c1[c] + c2[c] + c3[c];
+			Arrays.fill(c0, 0);
+			Arrays.fill(c1, 0);
+			Arrays.fill(c2, 0);
+			Arrays.fill(c3, 0);
+		}
+		freq[256] = 1; // EOF character
+		return freq;
+	}
+	
+	/**
+	 * Estimates the number of bits of the Huffman codes of characters with these frequencies by their entropy,
+	 * a lower bound that needs no code table
+	 * @param freq input parameter, freq[i] = frequency of character i
+	 * @return sum of freq[i] * log2(total / freq[i])
+	 */
+	private double entropyBits(long[] freq) {
+		long total = 0;
+		for (long f : freq) total += f;
+		double bits = 0;
+		for (long f : freq) {
+			if (f > 0) bits += f * Math.log((double) total / f);
+		}
+		return bits / Math.log(2);
+	}
+	
+	/**
+	 * Tells whether Huffman coding makes the input smaller than storing it as is
+	 * @param freq input parameter, freq[i] = number of times character i appears in input and freq[256] = 1
+	 * @param codeTable input parameter, packed code table (see buildCodeTable) giving the code lengths
+	 * @param headerBits size of the header written before the codes
+	 * @return true if header and codes take fewer bits than the input
+	 */
+	private boolean worthCoding(long[] freq, long[] codeTable, long headerBits) {
+		long bits = headerBits, inputBits = 0;
+		for (int c = 0; c < freq.length; c++) {
+			bits += freq[c] * (codeTable[c] & 63);
+			if (c < 256) inputBits += 8 * freq[c];
+		}
+		return bits < inputBits;
+	}
+	
+	/**
+	 * Counts the frequency of each character of the input after each previous character (order-1 context)
+	 * The first character is counted after character 0 and "end-of-file" after the last character
+	 * @param input the pieces of the input, in order, each of at most MAP_SEGMENT bytes so int counters cannot overflow
+	 * @return array freq where freq[p][i] = number of times character i follows character p in input
+	 */
+	private long[][] countContextFrequencies(ByteBuffer[] input) {
+		long[][] freq = new long[256][257];
+		int[] count = new int[256 * 256]; // count[p<<8 | i] for the current piece
+		int prev = 0;
+		for (ByteBuffer segment : input) {
+			for (int i = segment.position(); i < segment.limit(); i++) {
+				int c = segment.get(i) & 0xFF;
+				count[(prev << 8) | c]++;
+				prev = c;
+			}
+			for (int p = 0; p < 256; p++) {
+				for (int c = 0; c < 256; c++) freq[p][c] += count[(p << 8) | c];
+			}
+			Arrays.fill(count, 0);
+		}
+		freq[prev][256] = 1; // EOF character
+		return freq;
+	}
+	
+	/**
+	 * Groups contexts whose characters have similar frequencies so that they can share one code table
+	 * Starting from one group per context that occurs, the two groups whose merge saves the most bits are merged
+	 * while that saves bits or there are more than maxGroups groups; the cost of a group is estimated as
+	 * the entropy of its characters plus about 8 bits of header per character with a code
+	 * @param freq input parameter, freq[p][i] = number of times character i follows character p
+	 * @param maxGroups largest number of groups
+	 * @return array group where group[p] is the group of context p (0..number of groups-1), -1 if p does not occur
+	 */
+	private int[] clusterContexts(long[][] freq, int maxGroups) {
+		int n = freq.length;
+		long[][] groupFreq = new long[n][];
+		double[] cost = new double[n];
+		int[] group = new int[n];
+		for (int p = 0; p < n; p++) {
+			group[p] = -1;
+			for (long f : freq[p]) {
+				if (f > 0) group[p] = p; // p occurs, it starts as its own group
+			}
+			if (group[p] == -1) continue;
+			groupFreq[p] = freq[p].clone();
+			cost[p] = estimateCost(groupFreq[p], null);
+		}
+		double[][] saving = new double[n][n]; // saving[a][b] (a<b) = bits saved by merging groups a and b
+		for (int a = 0; a < n; a++) {
+			for (int b = a + 1; b < n; b++) {
+				if (groupFreq[a] != null && groupFreq[b] != null) saving[a][b] = cost[a] + cost[b] - estimateCost(groupFreq[a], groupFreq[b]);
+			}
+		}
+		int groups = 0;
+		for (long[] f : groupFreq) if (f != null) groups++;
+		
+		while (groups > 1) {
+			int bestA = -1, bestB = -1;
+			for (int a = 0; a < n; a++) {
+				if (groupFreq[a] == null) continue;
+				for (int b = a + 1; b < n; b++) {
+					if (groupFreq[b] != null && (bestA == -1 || saving[a][b] > saving[bestA][bestB])) { bestA = a; bestB = b; }
+				}
+			}
+			if (saving[bestA][bestB] <= 0 && groups <= maxGroups) break;
+			for (int c = 0; c < groupFreq[bestA].length; c++) groupFreq[bestA][c] += groupFreq[bestB][c];
+			cost[bestA] -= saving[bestA][bestB] - cost[bestB];
+			groupFreq[bestB] = null;
+			for (int p = 0; p < n; p++) if (group[p] == bestB) group[p] = bestA;
+			groups--;
+			for (int x = 0; x < n; x++) { // only savings involving the merged group change
+				if (x == bestA || groupFreq[x] == null) continue;
+				int a = Math.min(x, bestA), b = Math.max(x, bestA);
+				saving[a][b] = cost[a] + cost[b] - estimateCost(groupFreq[a], groupFreq[b]);
+			}
+		}
+		
+		int[] number = new int[n]; // renumber the remaining groups 0, 1, ...
+		int next = 0;
+		for (int g = 0; g < n; g++) if (groupFreq[g] != null) number[g] = next++;
+		for (int p = 0; p < n; p++) if (group[p] != -1) group[p] = number[group[p]];
+		return group;
+	}
+	
+	private double estimateCost(long[] freqA, long[] freqB) { // bits to encode the characters of freqA (plus freqB if not null) with one table
+		long total = 0;
+		for (int c = 0; c < freqA.length; c++) total += freqA[c] + (freqB == null ? 0 : freqB[c]);
+		double bits = 0;
+		for (int c = 0; c < freqA.length; c++) {
+			long f = freqA[c] + (freqB == null ? 0 : freqB[c]);
+			if (f > 0) bits += 8 + f * Math.log((double) total / f) / Math.log(2);
+		}
+		return bits;
+	}
+	
+	/**
+	 * Maps a file into memory so that it can be read several times without system calls per byte
+	 * @param inputFileName the file to be mapped
+	 * @return the mapped pieces of the file, in order, each of at most MAP_SEGMENT bytes (none for an empty file)
+	 * @throws IOException indicates problems opening or mapping the file
+	 */
+	private MappedByteBuffer[] mapInput(String inputFileName) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ)) {
+			long size = channel.size();
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + MAP_SEGMENT - 1) / MAP_SEGMENT)];
+			for (int k = 0; k < segments.length; k++) {
+				long start = k * MAP_SEGMENT;
+				segments[k] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_SEGMENT, size - start));
+			}
+			return segments; // mappings stay valid after the channel is closed
+		}
+	}
+	
 	/**
 	 * Create Huffman tree using the given frequency table; the method requires a heap priority queue to run in O(nlogn) where n is the characters with nonzero frequency
 	 * @param freqTable the frequency table for characters 0..255 plus 256 = "end-of-file" with same specs are return value of buildFrequencyTable
@@ -199,22 +1167,341 @@ public class Huffman {
 	}
 	
 	/**
-	 * Encodes an input using encoding Table that stores the Huffman code for each character
-	 * @param input - input parameter, a file to be encoded using Huffman encoding
-	 * @param encodingTable - input parameter, a table containing the Huffman code for each character
-	 * @param output - output paramter - file where the encoded bits will be written to.
-	 * @throws IOException indicates I/O errors for input/output streams
+	 * Computes the length of the Huffman code of each character in linear time with the two-queue method:
+	 * characters are sorted once by frequency (radix sort), then the two lightest trees are always at the front
+	 * of either the queue of characters or the queue of merged trees, since merged trees are created in
+	 * increasing order of weight; no priority queue, boxed keys or tree nodes are needed
+	 * @param freq freq[i] is the frequency of character i
+	 * @param scratch work parameter for an alphabet of freq.length symbols, whose codeLength array is returned
+	 * @return array codeLength where codeLength[i] is the depth of i in the Huffman tree, 0 if freq[i] is 0
+	 *         (a single character gets length 1 so that it still has a code)
 	 */
-	private void encodeData(InputStream input, ArrayList<String> encodingTable, OutputStream output) throws IOException {
-		OutBitStream bitStream = new OutBitStream(output); // uses bitStream to output bit by bit
-	   
-		/************ test code here ************/
-		int byteRead;
-		while ((byteRead = input.read()) != -1) {
-			String code = encodingTable.get(byteRead);
-			for (char bit : code.toCharArray()) {
-				bitStream.writeBit(bit - '0');
-			}
+	private int[] buildCodeLengths(long[] freq, EncodeScratch scratch) {
+		int[] codeLength = scratch.codeLength;
+		Arrays.fill(codeLength, 0);
+		int n = sortByFrequency(freq, scratch);
+		int[] order = scratch.order;
+		if (n == 1) codeLength[order[0]] = 1;
+		if (n <= 1) return codeLength;
+		
+		long[] weight = scratch.weight; // trees 0..n-1 are the characters in order, n.. are merged trees
+		int[] parent = scratch.parent;
+		for (int i = 0; i < n; i++) weight[i] = freq[order[i]];
+		int leaf = 0, merged = n; // fronts of the two queues
+		for (int next = n; next < 2 * n - 1; next++) {
+			int a = (merged == next || (leaf < n && weight[leaf] <= weight[merged])) ? leaf++ : merged++;
+			int b = (merged == next || (leaf < n && weight[leaf] <= weight[merged])) ? leaf++ : merged++;
+			weight[next] = weight[a] + weight[b];
+			parent[a] = next;
+			parent[b] = next;
+		}
+		int[] depth = parent; // parents are created after their children, so depths can be filled from the root down
+		depth[2 * n - 2] = 0;
+		for (int t = 2 * n - 3; t >= 0; t--) depth[t] = depth[parent[t]] + 1;
+		for (int i = 0; i < n; i++) codeLength[order[i]] = depth[i];
+		return codeLength;
+	}
+	
+	/**
+	 * Sorts the characters with nonzero frequency by increasing frequency, with a radix sort on bytes of the frequency
+	 * (only as many passes as bytes in the largest frequency)
+	 * @param freq freq[i] is the frequency of character i
+	 * @param scratch work parameter for an alphabet of freq.length symbols
+	 * @return the number n of characters with nonzero frequency, which are left in scratch.order[0..n-1]
+	 *         by increasing frequency (ties by character)
+	 */
+	private int sortByFrequency(long[] freq, EncodeScratch scratch) {
+		int n = 0;
+		long max = 0;
+		for (long f : freq) {
+			if (f > 0) n++;
+			max = Math.max(max, f);
+		}
+		int[] order = scratch.order, sorted = scratch.sorted, count = scratch.count;
+		for (int c = 0, k = 0; c < freq.length; c++) if (freq[c] > 0) order[k++] = c;
+		for (int shift = 0; shift < 64 && (max >>> shift) != 0; shift += 8) { // stable counting sort on each byte
+			Arrays.fill(count, 0);
+			for (int k = 0; k < n; k++) count[((int) (freq[order[k]] >>> shift) & 0xFF) + 1]++;
+			for (int d = 0; d < 256; d++) count[d + 1] += count[d];
+			for (int k = 0; k < n; k++) sorted[count[(int) (freq[order[k]] >>> shift) & 0xFF]++] = order[k];
+			int[] t = order; order = sorted; sorted = t;
+		}
+		scratch.order = order; // the last pass may have left the result in the other array
+		scratch.sorted = sorted;
+		return n;
+	}
+	
+	/**
+	 * Computes optimal code lengths of at most limit bits: the Huffman code lengths (buildCodeLengths) when no code
+	 * is longer than limit, otherwise the lengths found by packageMerge
+	 * @param freq freq[i] is the frequency of character i, as returned by countFrequencies
+	 * @param limit the longest code length allowed, with 2^limit at least the number of characters with nonzero frequency
+	 * @return array codeLength where codeLength[i] is the length of the code of i, 0 if i has frequency 0
+	 */
+	private int[] buildLimitedCodeLengths(long[] freq, int limit) {
+		return buildLimitedCodeLengths(freq, limit, new EncodeScratch(freq.length));
+	}
+	
+	/**
+	 * Computes optimal code lengths of at most limit bits like buildLimitedCodeLengths(long[], int), in work arrays
+	 * (only packageMerge, needed for skewed frequencies, allocates its own)
+	 * @param freq freq[i] is the frequency of character i
+	 * @param limit the longest code length allowed
+	 * @param scratch work parameter for an alphabet of freq.length symbols
+	 * @return array codeLength where codeLength[i] is the length of the code of i, 0 if i has frequency 0
+	 */
+	private int[] buildLimitedCodeLengths(long[] freq, int limit, EncodeScratch scratch) {
+		int[] codeLength = buildCodeLengths(freq, scratch);
+		for (int length : codeLength) {
+			if (length > limit) return packageMerge(freq, limit);
+		}
+		return codeLength;
+	}
+	
+	/**
+	 * Computes optimal code lengths of at most limit bits using the package-merge algorithm (Larmore and Hirschberg)
+	 * Starting from the deepest level, where the list holds the characters sorted by frequency, each level's list
+	 * merges the characters with "packages" made by pairing consecutive items of the level below; the 2n-2 lightest
+	 * items of the top level are taken, and a character's code length is the number of levels where it is taken
+	 * @param freq freq[i] is the frequency of character i
+	 * @param limit the longest code length allowed, with 2^limit at least the number of characters with nonzero frequency
+	 * @return array codeLength where codeLength[i] is the length of the code of i, 0 if freq[i] is 0
+	 */
+	private int[] packageMerge(long[] freq, int limit) {
+		int n = 0;
+		for (long f : freq) if (f > 0) n++;
+		if (n > (1L << Math.min(limit, 62))) throw new IllegalArgumentException(n + " characters do not fit in codes of " + limit + " bits");
+		Integer[] order = new Integer[n]; // characters with nonzero frequency, by increasing frequency
+		for (int c = 0, k = 0; c < freq.length; c++) if (freq[c] > 0) order[k++] = c;
+		Arrays.sort(order, (a, b) -> Long.compare(freq[a], freq[b]));
+		int[] codeLength = new int[freq.length];
+		if (n == 1) codeLength[order[0]] = 1;
+		if (n <= 1) return codeLength;
+		
+		long[][] weight = new long[limit][];       // weight[j] is the list of level j, level 0 is the top
+		boolean[][] isPackage = new boolean[limit][];
+		weight[limit - 1] = new long[n];
+		isPackage[limit - 1] = new boolean[n];
+		for (int i = 0; i < n; i++) weight[limit - 1][i] = freq[order[i]];
+		for (int j = limit - 2; j >= 0; j--) {
+			long[] below = weight[j + 1];
+			int packages = below.length / 2;
+			weight[j] = new long[n + packages];
+			isPackage[j] = new boolean[n + packages];
+			int leaf = 0, pack = 0;
+			for (int i = 0; i < weight[j].length; i++) { // merge characters with packages, both sorted
+				long packWeight = (pack < packages) ? below[2 * pack] + below[2 * pack + 1] : Long.MAX_VALUE;
+				if (leaf < n && freq[order[leaf]] <= packWeight) {
+					weight[j][i] = freq[order[leaf++]];
+				} else {
+					weight[j][i] = packWeight;
+					isPackage[j][i] = true;
+					pack++;
+				}
+			}
+		}
+		int taken = 2 * n - 2;
+		for (int j = 0; j < limit && taken > 0; j++) {
+			int leaves = 0;
+			for (int i = 0; i < taken; i++) if (!isPackage[j][i]) leaves++;
+			for (int i = 0; i < leaves; i++) codeLength[order[i]]++; // lightest characters are the ones taken
+			taken = 2 * (taken - leaves);
+		}
+		return codeLength;
+	}
+	
+	/**
+	 * Assigns canonical Huffman codes: shorter codes come first and codes of the same length follow character order,
+	 * so the codes are fully determined by their lengths; the arrays are given by the caller so that they can be reused
+	 * @param codeLength input parameter, codeLength[i] is the length of the code of i (0 if i has no code)
+	 * @param code output parameter, at least as long as codeLength; the codeLength[i] lowest bits of code[i] are set to
+	 *        the code of character i (0 if i has no code)
+	 * @param nextCode work parameter of MAX_CODE_LENGTH+1 entries
+	 * @return code
+	 * @throws IOException if the lengths cannot be the lengths of a prefix code
+	 */
+	private long[] buildCanonicalCodes(int[] codeLength, long[] code, long[] nextCode) throws IOException {
+		int maxLength = 0;
+		Arrays.fill(nextCode, 0);
+		for (int length : codeLength) {
+			if (length < 0 || length > MAX_CODE_LENGTH) throw new IOException("Invalid code length " + length);
+			maxLength = Math.max(maxLength, length);
+			nextCode[length]++; // number of codes of each length, turned into the first code of each length below
+		}
+		
+		long next = 0, count = 0; // count is the number of codes one bit shorter
+		for (int length = 1; length <= maxLength; length++) {
+			next = (next + count) << 1;
+			count = nextCode[length];
+			nextCode[length] = next;
+		}
+		for (int c = 0; c < codeLength.length; c++) {
+			int length = codeLength[c];
+			code[c] = 0;
+			if (length == 0) continue;
+			code[c] = nextCode[length]++;
+			if (length < 64 && code[c] >>> length != 0) throw new IOException("Invalid code lengths, codes overflow");
+		}
+		return code;
+	}
+	
+	/**
+	 * Builds a packed code table from code lengths, using canonical codes
+	 * @param codeLength input parameter, codeLength[i] is the length of the code of i (0 if i has no code)
+	 * @return array table where table[i] = (code of i) << 6 | (length of the code of i)
+	 * @throws IOException if the lengths cannot be the lengths of a prefix code
+	 */
+	private long[] buildCodeTable(int[] codeLength) throws IOException {
+		return buildCodeTable(codeLength, new long[codeLength.length], new long[MAX_CODE_LENGTH + 1]);
+	}
+	
+	/**
+	 * Builds a packed code table from code lengths like buildCodeTable(int[]), into arrays given by the caller
+	 * @param codeLength input parameter, codeLength[i] is the length of the code of i (0 if i has no code)
+	 * @param code output parameter, at least as long as codeLength, filled with the table
+	 * @param nextCode work parameter of MAX_CODE_LENGTH+1 entries
+	 * @return code
+	 * @throws IOException if the lengths cannot be the lengths of a prefix code
+	 */
+	private long[] buildCodeTable(int[] codeLength, long[] code, long[] nextCode) throws IOException {
+		buildCanonicalCodes(codeLength, code, nextCode);
+		for (int c = 0; c < code.length; c++) code[c] = (code[c] << 6) | codeLength[c];
+		return code;
+	}
+	
+	/**
+	 * Builds a packed code table holding the codes of a Huffman tree, without creating strings
+	 * @param tree input parameter storing the Huffman tree
+	 * @return array table of length 257 where table[i] = (code of i) << 6 | (length of the code of i), 0 if i is not a leaf
+	 * @throws IOException if the tree is deeper than MAX_CODE_LENGTH
+	 */
+	private long[] buildCodeTable(FlatTree tree) throws IOException {
+		long[] table = new long[257];
+		buildCodeTableHelper(tree, tree.root, 0, 0, table);
+		return table;
+	}
+	
+	private void buildCodeTableHelper(FlatTree tree, int node, long code, int length, long[] table) throws IOException {
+		if (length > MAX_CODE_LENGTH) throw new IOException("Huffman tree is too deep, codes longer than " + MAX_CODE_LENGTH + " bits");
+		if (tree.isLeaf(node)) {
+			table[tree.symbol[node]] = (code << 6) | length;
+		} else {
+			buildCodeTableHelper(tree, tree.left[node], code << 1, length + 1, table);
+			buildCodeTableHelper(tree, tree.right[node], (code << 1) | 1, length + 1, table);
+		}
+	}
+	
+	/**
+	 * Writes code lengths compactly: 4 bits giving the number of bits w of the largest length, then for each character
+	 * either bit 1 followed by its length in w bits, or bit 0 followed by 8 bits n for a run of n+1 characters without code
+	 * @param bitStream output parameter where the lengths are written to
+	 * @param codeLength input parameter, codeLength[i] is the length of the code of i (0 if i has no code)
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void writeCodeLengths(OutBitStream bitStream, int[] codeLength) throws IOException {
+		int maxLength = 0;
+		for (int length : codeLength) maxLength = Math.max(maxLength, length);
+		int width = 32 - Integer.numberOfLeadingZeros(maxLength);
+		bitStream.writeBits(width, 4);
+		int c = 0;
+		while (c < codeLength.length) {
+			if (codeLength[c] > 0) {
+				bitStream.writeBits(1, 1);
+				bitStream.writeBits(codeLength[c], width);
+				c++;
+			} else {
+				int run = 1;
+				while (run < 256 && c + run < codeLength.length && codeLength[c + run] == 0) run++;
+				bitStream.writeBits(0, 1);
+				bitStream.writeBits(run - 1, 8);
+				c += run;
+			}
+		}
+	}
+	
+	/**
+	 * Number of bits written by writeCodeLengths, without writing them
+	 * @param codeLength input parameter, codeLength[i] is the length of the code of i (0 if i has no code)
+	 * @return the number of bits of the code lengths
+	 */
+	private long codeLengthsBits(int[] codeLength) {
+		int maxLength = 0;
+		for (int length : codeLength) maxLength = Math.max(maxLength, length);
+		int width = 32 - Integer.numberOfLeadingZeros(maxLength);
+		long bits = 4;
+		int c = 0;
+		while (c < codeLength.length) {
+			if (codeLength[c] > 0) {
+				bits += 1 + width;
+				c++;
+			} else {
+				int run = 1;
+				while (run < 256 && c + run < codeLength.length && codeLength[c + run] == 0) run++;
+				bits += 9;
+				c += run;
+			}
+		}
+		return bits;
+	}
+	
+	/**
+	 * Reads code lengths written by writeCodeLengths
+	 * @param bitStream input parameter where the lengths are read from
+	 * @param alphabetSize number of characters whose lengths were written
+	 * @return array codeLength where codeLength[i] is the length of the code of i (0 if i has no code)
+	 * @throws IOException indicates I/O errors for the input stream, or a header that is not valid
+	 */
+	private int[] readCodeLengths(InBitStream bitStream, int alphabetSize) throws IOException {
+		return readCodeLengths(bitStream, new int[alphabetSize]);
+	}
+	
+	/**
+	 * Reads code lengths written by writeCodeLengths into an array given by the caller, so that it can be reused
+	 * @param bitStream input parameter where the lengths are read from
+	 * @param codeLength output parameter, as long as the alphabet; codeLength[i] is set to the length of the code of i (0 if i has no code)
+	 * @return codeLength
+	 * @throws IOException indicates I/O errors for the input stream, or a header that is not valid
+	 */
+	private int[] readCodeLengths(InBitStream bitStream, int[] codeLength) throws IOException {
+		int alphabetSize = codeLength.length;
+		int width = bitStream.peekBits(4);
+		bitStream.skipBits(4);
+		int c = 0;
+		while (c < alphabetSize) {
+			int present = bitStream.peekBits(1);
+			bitStream.skipBits(1);
+			if (present == 1) {
+				codeLength[c++] = (width == 0) ? 0 : bitStream.peekBits(width);
+				bitStream.skipBits(width);
+			} else {
+				int run = bitStream.peekBits(8) + 1;
+				bitStream.skipBits(8);
+				Arrays.fill(codeLength, c, Math.min(c + run, alphabetSize), 0);
+				c += run;
+			}
+			if (bitStream.pastEnd()) throw new EOFException("Encoded file ended inside its header");
+		}
+		if (c != alphabetSize) throw new IOException("Invalid header, code lengths do not match the alphabet");
+		return codeLength;
+	}
+	
+	/**
+	 * Encodes an input using encoding Table that stores the Huffman code for each character
+	 * @param input - input parameter, a file to be encoded using Huffman encoding
+	 * @param encodingTable - input parameter, a table containing the Huffman code for each character
+	 * @param output - output paramter - file where the encoded bits will be written to.
+	 * @throws IOException indicates I/O errors for input/output streams
+	 */
+	private void encodeData(InputStream input, ArrayList<String> encodingTable, OutputStream output) throws IOException {
+		OutBitStream bitStream = new OutBitStream(output); // uses bitStream to output bit by bit
+	   
+		/************ test code here ************/
+		int byteRead;
+		while ((byteRead = input.read()) != -1) {
+			String code = encodingTable.get(byteRead);
+			for (char bit : code.toCharArray()) {
+				bitStream.writeBit(bit - '0');
+			}
 		}
 		
 		// Write EOF code
@@ -226,6 +1513,65 @@ public class Huffman {
 		bitStream.close();
 	}
 	
+	/**
+	 * Encodes a memory mapped input using a packed code table; no objects are created per character
+	 * @param input - input parameter, the pieces of the mapped input file, in order
+	 * @param codeTable - input parameter, codeTable[i] = (code of i) << 6 | (length of the code of i), see buildCodeTable
+	 * @param bitStream - output parameter where the encoded bits are written to (after any header); it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeData(ByteBuffer[] input, long[] codeTable, OutBitStream bitStream) throws IOException {
+		for (ByteBuffer segment : input) encodeBytes(segment, codeTable, bitStream);
+		long eof = codeTable[256]; // EOF code
+		bitStream.writeBits(eof >>> 6, (int) eof & 63);
+		bitStream.close();
+	}
+	
+	/**
+	 * Encodes the bytes between position and limit of a buffer, without "end-of-file"
+	 * Bytes are loaded 8 at a time and the codes of 4 of them (if no code is longer than 15 bits) or 2 of them
+	 * (if none is longer than 31 bits) are joined into a single writeBits; longer codes are written one at a time
+	 * @param input - input parameter, the bytes to encode (position and limit are not changed)
+	 * @param codeTable - input parameter, the packed code table, see buildCodeTable
+	 * @param bitStream - output parameter where the encoded bits are written to
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeBytes(ByteBuffer input, long[] codeTable, OutBitStream bitStream) throws IOException {
+		int maxLength = 0;
+		for (long entry : codeTable) maxLength = Math.max(maxLength, (int) entry & 63);
+		int i = input.position();
+		int limit = input.limit();
+		boolean reverse = input.order() == ByteOrder.LITTLE_ENDIAN; // words are read first byte in the high bits
+		if (maxLength <= 15) {
+			for (; i + 8 <= limit; i += 8) {
+				long word = reverse ? Long.reverseBytes(input.getLong(i)) : input.getLong(i);
+				for (int half = 32; half >= 0; half -= 32) {
+					long e0 = codeTable[(int) (word >>> (half + 24)) & 0xFF];
+					long e1 = codeTable[(int) (word >>> (half + 16)) & 0xFF];
+					long e2 = codeTable[(int) (word >>> (half + 8)) & 0xFF];
+					long e3 = codeTable[(int) (word >>> half) & 0xFF];
+					int l1 = (int) e1 & 63, l2 = (int) e2 & 63, l3 = (int) e3 & 63;
+					long bits = (((((e0 >>> 6) << l1) | (e1 >>> 6)) << l2 | (e2 >>> 6)) << l3) | (e3 >>> 6);
+					bitStream.writeBits(bits, ((int) e0 & 63) + l1 + l2 + l3);
+				}
+			}
+		} else if (maxLength <= 31) {
+			for (; i + 8 <= limit; i += 8) {
+				long word = reverse ? Long.reverseBytes(input.getLong(i)) : input.getLong(i);
+				for (int shift = 48; shift >= 0; shift -= 16) {
+					long e0 = codeTable[(int) (word >>> (shift + 8)) & 0xFF];
+					long e1 = codeTable[(int) (word >>> shift) & 0xFF];
+					int l1 = (int) e1 & 63;
+					bitStream.writeBits(((e0 >>> 6) << l1) | (e1 >>> 6), ((int) e0 & 63) + l1);
+				}
+			}
+		}
+		for (; i < limit; i++) {
+			long entry = codeTable[input.get(i) & 0xFF];
+			bitStream.writeBits(entry >>> 6, (int) entry & 63);
+		}
+	}
+	
 	/**
 	 * Decodes an encoded input using encoding tree, writing decoded file to output
 	 * @param input  input parameter a stream where header has already been read from
@@ -262,6 +1608,1523 @@ public class Huffman {
 		output.close();
 	}
 	
+	/**
+	 * Decodes bits walking the flattened Huffman tree one bit at a time, writing decoded bytes to output (which is left open)
+	 * Like decodeDataTable, bytes are written one block at a time, so that comparing the two measures decoding only
+	 * @param inputBitStream input parameter a bit stream positioned at the first code
+	 * @param tree input parameter contains the Huffman tree
+	 * @param output output parameter where the decoded bytes will be written to 
+	 * @param limit decoding stops after limit bytes even if "end-of-file" was not found
+	 * @return number of bytes decoded
+	 * @throws IOException indicates I/O errors for input/output streams, or a bit sequence that is not a code
+	 */
+	private long decodeData(InBitStream inputBitStream, FlatTree tree, OutputStream output, long limit) throws IOException {
+		short[] left = tree.left, right = tree.right, symbol = tree.symbol;
+		int node = tree.root;
+		byte[] buffer = new byte[BUFFER_SIZE]; // decoded bytes are written to output one block at a time
+		int count = 0;
+		long total = 0;
+		
+		int bit;
+		while (total + count < limit && (bit = inputBitStream.readBit()) != -1) {
+			node = (bit == 0) ? left[node] : right[node];
+			if (node == -1) throw new IOException("Encoded data contains an invalid code");
+			if (symbol[node] != -1) { // leaf reached
+				if (symbol[node] == 256) break;
+				buffer[count++] = (byte) symbol[node];
+				if (count == BUFFER_SIZE) {
+					output.write(buffer, 0, count);
+					total += count;
+					count = 0;
+				}
+				node = tree.root;
+			}
+		}
+		output.write(buffer, 0, count);
+		return total + count;
+	}
+	
+	/**
+	 * Decodes bits using a lookup table, writing decoded bytes to output (which is left open)
+	 * @param inputBitStream input parameter a bit stream positioned at the first code
+	 * @param decodeTable input parameter contains the lookup table built from the Huffman tree
+	 * @param output output parameter where the decoded bytes will be written to 
+	 * @param limit decoding stops after limit bytes even if "end-of-file" was not found
+	 * @return number of bytes decoded
+	 * @throws IOException indicates I/O errors for input/output streams, or encoded input ending before "end-of-file" 
+	 */
+	private long decodeDataTable(InBitStream inputBitStream, DecodeTable decodeTable, OutputStream output, long limit) throws IOException {
+		int[] table = decodeTable.table;
+		long[] multi = decodeTable.hasMulti ? decodeTable.multi : null;
+		byte[] buffer = new byte[BUFFER_SIZE + 8]; // decoded bytes are written to output one block at a time
+		ByteBuffer words = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN); // view to store the characters of a multi entry at once
+		int count = 0;
+		long total = 0;
+		
+		while (total + count < limit) {
+			int bits = inputBitStream.peekBits(TABLE_BITS);
+			if (multi != null && multi[bits] >>> 52 != 0 && limit - total - count >= MULTI_SYMBOLS) { // one or more whole codes found in table
+				long characters = multi[bits];
+				inputBitStream.skipBits((int) (characters >>> 48) & 0xF);
+				if (inputBitStream.pastEnd()) throw new EOFException("Encoded data ended before end-of-file character");
+				words.putLong(count, characters); // all 8 bytes are stored, those past the characters are overwritten later
+				count += (int) (characters >>> 52);
+				if (count > BUFFER_SIZE - MULTI_SYMBOLS) {
+					output.write(buffer, 0, count);
+					total += count;
+					count = 0;
+				}
+				continue;
+			}
+			int entry = table[bits];
+			int character;
+			if (entry >= 0) { // whole code found in table
+				inputBitStream.skipBits(entry >>> 16);
+				character = entry & 0xFFFF;
+			} else { // slow path: finish the code walking the tree
+				character = decodeTable.decodeSlow(inputBitStream, entry);
+			}
+			if (inputBitStream.pastEnd()) throw new EOFException("Encoded data ended before end-of-file character");
+			if (character == 256) break;
+			buffer[count++] = (byte) character;
+			if (count > BUFFER_SIZE - MULTI_SYMBOLS) {
+				output.write(buffer, 0, count);
+				total += count;
+				count = 0;
+			}
+		}
+		output.write(buffer, 0, count);
+		return total + count;
+	}
+	
+	/**
+	 * Encodes input in CANONICAL format: format byte, code lengths, then the code of each character and "end-of-file"
+	 * If coding would not make input smaller it is written in STORED format instead; the entropy of the frequencies
+	 * rules this out before building codes for inputs that are clearly incompressible
+	 * Inputs with at most 16 different characters are written in PACKED format when that is no larger
+	 * @param input - input parameter, the pieces of the input, in order
+	 * @param output - output parameter where the encoded input is written to; it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeCanonical(ByteBuffer[] input, OutputStream output) throws IOException {
+		long[] freq = countFrequencies(input);
+		int[] codeLength = buildCanonicalCodeLengths(freq);
+		int width = packedWidth(freq, canonicalBytes(freq, codeLength));
+		if (width > 0) {
+			encodePacked(input, freq, width, new OutBitStream(output));
+			return;
+		}
+		if (codeLength == null) {
+			encodeStored(input, output);
+			return;
+		}
+		output.write(Format.CANONICAL.tag);
+		OutBitStream bitStream = new OutBitStream(output);
+		writeCodeLengths(bitStream, codeLength); // write header with code lengths
+		encodeData(input, buildCodeTable(codeLength), bitStream);
+	}
+	
+	/**
+	 * Computes the code lengths written in CANONICAL format, unless coding would not make the input smaller
+	 * @param freq input parameter, freq[i] = number of times character i appears in input and freq[256] = 1
+	 * @return the code lengths, limited to LENGTH_LIMIT bits, or null if the input should be stored as is
+	 */
+	private int[] buildCanonicalCodeLengths(long[] freq) {
+		return buildCanonicalCodeLengths(freq, new EncodeScratch(257));
+	}
+	
+	/**
+	 * Computes the code lengths written in CANONICAL format like buildCanonicalCodeLengths(long[]), in work arrays
+	 * @param freq input parameter, freq[i] = number of times character i appears in input and freq[256] = 1
+	 * @param scratch work parameter for an alphabet of 257 symbols
+	 * @return the code lengths, limited to LENGTH_LIMIT bits, or null if the input should be stored as is
+	 */
+	private int[] buildCanonicalCodeLengths(long[] freq, EncodeScratch scratch) {
+		long inputBits = 0;
+		for (int c = 0; c < 256; c++) inputBits += 8 * freq[c];
+		if (entropyBits(freq) >= inputBits) return null;
+		int[] codeLength = buildLimitedCodeLengths(freq, LENGTH_LIMIT, scratch);
+		long headerBits = 4 + 9 * codeLength.length; // bound on the size of the code lengths
+		for (int c = 0; c < freq.length; c++) headerBits += freq[c] * codeLength[c];
+		return (headerBits < inputBits) ? codeLength : null;
+	}
+	
+	/**
+	 * Writes input in STORED format: format byte, then the bytes of input as they are
+	 * @param input - input parameter, the pieces of the input, in order
+	 * @param output - output parameter where the input is written to; it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeStored(ByteBuffer[] input, OutputStream output) throws IOException {
+		output.write(Format.STORED.tag);
+		WritableByteChannel channel = Channels.newChannel(output);
+		for (ByteBuffer segment : input) {
+			ByteBuffer bytes = segment.duplicate();
+			while (bytes.hasRemaining()) channel.write(bytes);
+		}
+		output.close();
+	}
+	
+	/**
+	 * Number of bytes of an input in CANONICAL format, or in STORED format if it is not coded
+	 * @param freq input parameter, freq[i] = number of times character i appears in input and freq[256] = 1
+	 * @param codeLength input parameter, the code lengths given by buildCanonicalCodeLengths, null if input is stored
+	 * @return number of bytes written by encodeCanonical
+	 */
+	private long canonicalBytes(long[] freq, int[] codeLength) {
+		long bits = 8;
+		if (codeLength == null) {
+			for (int c = 0; c < 256; c++) bits += 8 * freq[c];
+			return bits / 8;
+		}
+		bits += codeLengthsBits(codeLength);
+		for (int c = 0; c < freq.length; c++) bits += freq[c] * codeLength[c];
+		return (bits + 7) / 8;
+	}
+	
+	/**
+	 * Chooses the width of the codes of PACKED format: when at most 4 (or 16) different characters occur, each one
+	 * can be written as its 2 (or 4) bit index in the list of characters that occur
+	 * @param freq input parameter, freq[i] = number of times character i appears in input
+	 * @param codedBytes number of bytes of the input written in any other format
+	 * @return 2 or 4, or 0 if more than 16 characters occur or PACKED format would take more than codedBytes
+	 */
+	private int packedWidth(long[] freq, long codedBytes) {
+		int count = 0;
+		long length = 0;
+		for (int c = 0; c < 256; c++) {
+			if (freq[c] > 0) {
+				count++;
+				length += freq[c];
+			}
+		}
+		int width = (count == 0 || count > 16) ? 0 : (count <= 4) ? 2 : 4;
+		if (width == 0) return 0;
+		long packedBytes = 11 + count + (length * width + 7) / 8; // see encodePacked
+		return (packedBytes <= codedBytes) ? width : 0;
+	}
+	
+	/**
+	 * Encodes input in PACKED format: format byte, the width of the codes (8 bits), the number of characters that
+	 * occur (8 bits) and those characters in increasing order, the length of input (64 bits), then for each character
+	 * its index in that list in width bits; there is no "end-of-file" code as the length is known
+	 * Codes all have the same length, so decoding needs neither tree nor table of codes, only shifts and masks
+	 * @param input - input parameter, the pieces of the input, in order
+	 * @param freq - input parameter, freq[i] = number of times character i appears in input
+	 * @param width - length of the codes, given by packedWidth
+	 * @param bitStream - output parameter where the encoded input is written to; it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodePacked(ByteBuffer[] input, long[] freq, int width, OutBitStream bitStream) throws IOException {
+		encodePacked(input, freq, width, bitStream, new long[257]);
+	}
+	
+	/**
+	 * Encodes input in PACKED format like encodePacked(ByteBuffer[], long[], int, OutBitStream), with a code table given by the caller
+	 * @param codeTable - work parameter of 257 entries, filled with the codes in the packed form used by encodeBytes
+	 */
+	private void encodePacked(ByteBuffer[] input, long[] freq, int width, OutBitStream bitStream, long[] codeTable) throws IOException {
+		Arrays.fill(codeTable, 0);
+		int count = 0;
+		long length = 0;
+		for (int c = 0; c < 256; c++) {
+			if (freq[c] > 0) {
+				codeTable[c] = ((long) count++ << 6) | width;
+				length += freq[c];
+			}
+		}
+		bitStream.writeBits(Format.PACKED.tag, 8);
+		bitStream.writeBits(width, 8);
+		bitStream.writeBits(count, 8);
+		for (int c = 0; c < 256; c++) {
+			if (freq[c] > 0) bitStream.writeBits(c, 8);
+		}
+		bitStream.writeBits(length >>> 32, 32);
+		bitStream.writeBits(length & 0xFFFFFFFFL, 32);
+		for (ByteBuffer segment : input) encodeBytes(segment, codeTable, bitStream);
+		bitStream.close();
+	}
+	
+	/**
+	 * Decodes the rest of a PACKED format input whose format byte was already read
+	 * Each encoded byte holds 4 (or 2) whole codes, so a table built from the header gives the characters of each
+	 * possible byte at once
+	 * @param bitStream input parameter, positioned after the format byte
+	 * @param output output parameter where the decoded bytes will be written to (left open)
+	 * @param limit decoding stops after limit bytes even if the input is longer
+	 * @return number of bytes decoded
+	 * @throws IOException indicates I/O errors for input/output streams, or input that is not valid
+	 */
+	private long decodePacked(InBitStream bitStream, OutputStream output, long limit) throws IOException {
+		long[] expand = new long[256];
+		int width = readPackedHeader(bitStream, new byte[16], expand);
+		long length = readLong(bitStream);
+		if (length < 0) throw new IOException("Invalid header, length " + length);
+		byte[] buffer = new byte[BUFFER_SIZE]; // decoded bytes are written to output one block at a time
+		ByteBuffer words = ByteBuffer.wrap(buffer);
+		long end = Math.min(length, limit), total = 0;
+		while (total < end) {
+			int count = (int) Math.min(end - total, BUFFER_SIZE); // whole encoded bytes but in the last block, as BUFFER_SIZE is a multiple of 4
+			words.clear();
+			decodePackedBytes(bitStream, expand, width, words, count);
+			if (bitStream.pastEnd()) throw new EOFException("Encoded data ended before its last character");
+			output.write(buffer, 0, count);
+			total += count;
+		}
+		if (bitStream.pastEnd()) throw new EOFException("Encoded data ended before its last character");
+		return total;
+	}
+	
+	/**
+	 * Reads the header of a PACKED format input up to its length: code width, number of characters and characters
+	 * @param bitStream input parameter, positioned after the format byte
+	 * @param alphabet work parameter of 16 entries, set to the characters in the order of their codes
+	 * @param expand output parameter of 256 entries, set to the characters of each encoded byte, first one in the high bits,
+	 *        or -1 if it holds an index out of the list
+	 * @return the number of bits of each code, 2 or 4
+	 * @throws IOException indicates I/O errors for the input stream, or a header that is not valid
+	 */
+	private int readPackedHeader(InBitStream bitStream, byte[] alphabet, long[] expand) throws IOException {
+		int width = bitStream.peekBits(8);
+		bitStream.skipBits(8);
+		int count = bitStream.peekBits(8);
+		bitStream.skipBits(8);
+		if ((width != 2 && width != 4) || count == 0 || count > 1 << width) throw new IOException("Invalid header, " + count + " characters of " + width + " bits");
+		for (int k = 0; k < count; k++) {
+			alphabet[k] = (byte) bitStream.peekBits(8);
+			bitStream.skipBits(8);
+		}
+		int perByte = 8 / width;
+		for (int b = 0; b < 256; b++) {
+			long characters = 0;
+			for (int k = 0; k < perByte && characters >= 0; k++) {
+				int index = (b >>> (8 - width * (k + 1))) & ((1 << width) - 1);
+				characters = (index < count) ? (characters << 8) | (alphabet[index] & 0xFF) : -1;
+			}
+			expand[b] = characters;
+		}
+		return width;
+	}
+	
+	/**
+	 * Reads a 64 bit number written as two 32 bit halves, high half first
+	 * @param bitStream input parameter where the number is read from
+	 * @return the number read
+	 * @throws IOException indicates I/O errors for the input stream
+	 */
+	private long readLong(InBitStream bitStream) throws IOException {
+		long value = (long) bitStream.peekBits(32) << 32;
+		bitStream.skipBits(32);
+		value |= bitStream.peekBits(32) & 0xFFFFFFFFL;
+		bitStream.skipBits(32);
+		return value;
+	}
+	
+	/**
+	 * Decodes count characters of PACKED encoded data into words, from its position
+	 * Only whole encoded bytes are read, so count must be a multiple of the characters per byte except for the last characters of the input
+	 * @param bitStream input parameter where the encoded bytes are read from
+	 * @param expand input parameter, the characters of each encoded byte as set by readPackedHeader
+	 * @param width the number of bits of each code, 2 or 4
+	 * @param words output parameter with room for count bytes, heap or direct, of either byte order; its position is moved past them
+	 * @throws IOException indicates I/O errors for the input stream, or an invalid code
+	 */
+	private void decodePackedBytes(InBitStream bitStream, long[] expand, int width, ByteBuffer words, int count) throws IOException {
+		int perByte = 8 / width;
+		boolean littleEndian = words.order() == ByteOrder.LITTLE_ENDIAN; // expand has the first character in the high bits
+		int used = words.position(), end = used + count;
+		while (used < end) {
+			if (end - used >= 4 * perByte) { // 4 encoded bytes at once
+				int bits = bitStream.peekBits(32);
+				bitStream.skipBits(32);
+				long c0 = expand[bits >>> 24], c1 = expand[(bits >>> 16) & 0xFF], c2 = expand[(bits >>> 8) & 0xFF], c3 = expand[bits & 0xFF];
+				if ((c0 | c1 | c2 | c3) < 0) throw new IOException("Encoded data contains an invalid code");
+				if (width == 2) {
+					long first = (c0 << 32) | c1, second = (c2 << 32) | c3;
+					words.putLong(used, littleEndian ? Long.reverseBytes(first) : first);
+					words.putLong(used + 8, littleEndian ? Long.reverseBytes(second) : second);
+				} else {
+					long all = (c0 << 48) | (c1 << 32) | (c2 << 16) | c3;
+					words.putLong(used, littleEndian ? Long.reverseBytes(all) : all);
+				}
+				used += 4 * perByte;
+				continue;
+			}
+			long characters = expand[bitStream.peekBits(8)];
+			bitStream.skipBits(8);
+			if (characters < 0) throw new IOException("Encoded data contains an invalid code");
+			if (end - used >= perByte) {
+				if (width == 2) words.putInt(used, littleEndian ? Integer.reverseBytes((int) characters) : (int) characters);
+				else words.putShort(used, littleEndian ? Short.reverseBytes((short) characters) : (short) characters);
+				used += perByte;
+			} else { // last byte, holding padding after the last codes
+				for (int k = perByte - 1; used < end; k--) words.put(used++, (byte) (characters >>> (8 * k)));
+			}
+		}
+		words.position(end);
+	}
+	
+	/**
+	 * Decodes the rest of a CANONICAL format input whose format byte was already read
+	 * @param input input parameter, the encoded data following the format byte
+	 * @param output output parameter where the decoded bytes will be written to (left open)
+	 * @param tree work parameter, rebuilt from the header of input
+	 * @param decodeTable work parameter, rebuilt from tree if tableDecoding is set
+	 * @return number of bytes decoded
+	 * @throws IOException indicates I/O errors for input/output streams, or input that is not valid
+	 */
+	private long decodeCanonical(InputStream input, OutputStream output, FlatTree tree, DecodeTable decodeTable) throws IOException {
+		InBitStream inputBitStream = new InBitStream(input);
+		tree.buildCanonical(readCodeLengths(inputBitStream, 257)); //read header with code lengths
+		if (!tableDecoding) return decodeData(inputBitStream, tree, output, Long.MAX_VALUE);
+		decodeTable.build(tree, true);
+		return decodeDataTable(inputBitStream, decodeTable, output, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Encodes input in ADAPTIVE format, in a single pass: format byte, then the adaptive code of each character and "end-of-file"
+	 * @param input - input parameter, the pieces of the input, in order
+	 * @param output - output parameter where the encoded input is written to; it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeAdaptive(ByteBuffer[] input, OutputStream output) throws IOException {
+		output.write(Format.ADAPTIVE.tag);
+		OutBitStream bitStream = new OutBitStream(output);
+		AdaptiveTree tree = new AdaptiveTree();
+		for (ByteBuffer segment : input) {
+			for (int i = segment.position(); i < segment.limit(); i++) tree.encode(segment.get(i) & 0xFF, bitStream);
+		}
+		tree.encode(256, bitStream); // EOF
+		bitStream.close();
+	}
+	
+	/**
+	 * Decodes the rest of an ADAPTIVE format input whose format byte was already read
+	 * @param input input parameter, the encoded data following the format byte
+	 * @param output output parameter where the decoded bytes will be written to (left open)
+	 * @throws IOException indicates I/O errors for input/output streams, or input that is not valid
+	 */
+	private void decodeAdaptive(InputStream input, OutputStream output) throws IOException {
+		InBitStream inputBitStream = new InBitStream(input);
+		AdaptiveTree tree = new AdaptiveTree();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count = 0;
+		int c;
+		while ((c = tree.decode(inputBitStream)) != 256) {
+			buffer[count++] = (byte) c;
+			if (count == BUFFER_SIZE) {
+				output.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+		output.write(buffer, 0, count);
+	}
+	
+	/**
+	 * Encodes input in CONTEXT format, where the code of each character depends on the character before it:
+	 * contexts (previous characters) are clustered into at most 1<<CONTEXT_GROUP_BITS groups with one code table each.
+	 * Format byte, number of groups-1 (CONTEXT_GROUP_BITS bits), for each context bit 0 if it does not occur or
+	 * bit 1 followed by its group (CONTEXT_GROUP_BITS bits), the code lengths of each group, then the codes
+	 * @param input - input parameter, the pieces of the input, in order
+	 * @param output - output parameter where the encoded input is written to; it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeContext(ByteBuffer[] input, OutputStream output) throws IOException {
+		long[][] freq = countContextFrequencies(input);
+		int[] group = clusterContexts(freq, 1 << CONTEXT_GROUP_BITS);
+		int groups = 0;
+		for (int g : group) groups = Math.max(groups, g + 1);
+		long[][] groupFreq = new long[groups][257];
+		for (int p = 0; p < 256; p++) {
+			if (group[p] == -1) continue;
+			for (int c = 0; c < 257; c++) groupFreq[group[p]][c] += freq[p][c];
+		}
+		
+		output.write(Format.CONTEXT.tag);
+		OutBitStream bitStream = new OutBitStream(output);
+		bitStream.writeBits(groups - 1, CONTEXT_GROUP_BITS);
+		for (int p = 0; p < 256; p++) {
+			if (group[p] == -1) bitStream.writeBits(0, 1);
+			else bitStream.writeBits((1 << CONTEXT_GROUP_BITS) | group[p], 1 + CONTEXT_GROUP_BITS);
+		}
+		long[][] codeTable = new long[256][]; // code table of each context
+		long[][] groupTable = new long[groups][];
+		for (int g = 0; g < groups; g++) {
+			int[] codeLength = buildLimitedCodeLengths(groupFreq[g], LENGTH_LIMIT);
+			writeCodeLengths(bitStream, codeLength);
+			groupTable[g] = buildCodeTable(codeLength);
+		}
+		for (int p = 0; p < 256; p++) if (group[p] != -1) codeTable[p] = groupTable[group[p]];
+		
+		int prev = 0;
+		for (ByteBuffer segment : input) {
+			for (int i = segment.position(); i < segment.limit(); i++) {
+				int c = segment.get(i) & 0xFF;
+				long entry = codeTable[prev][c];
+				bitStream.writeBits(entry >>> 6, (int) entry & 63);
+				prev = c;
+			}
+		}
+		long entry = codeTable[prev][256]; // EOF
+		bitStream.writeBits(entry >>> 6, (int) entry & 63);
+		bitStream.close();
+	}
+	
+	/**
+	 * Decodes the rest of a CONTEXT format input whose format byte was already read, always with lookup tables:
+	 * codes are at most LENGTH_LIMIT = TABLE_BITS bits long so each character takes a single lookup in the table of its context
+	 * @param input input parameter, the encoded data following the format byte
+	 * @param output output parameter where the decoded bytes will be written to (left open)
+	 * @throws IOException indicates I/O errors for input/output streams, or input that is not valid
+	 */
+	private void decodeContext(InputStream input, OutputStream output) throws IOException {
+		InBitStream inputBitStream = new InBitStream(input);
+		int groups = inputBitStream.peekBits(CONTEXT_GROUP_BITS) + 1;
+		inputBitStream.skipBits(CONTEXT_GROUP_BITS);
+		int[] group = new int[256];
+		for (int p = 0; p < 256; p++) {
+			int occurs = inputBitStream.peekBits(1);
+			inputBitStream.skipBits(1);
+			if (occurs == 0) continue; // context never used, any table will do
+			group[p] = inputBitStream.peekBits(CONTEXT_GROUP_BITS);
+			inputBitStream.skipBits(CONTEXT_GROUP_BITS);
+			if (group[p] >= groups) throw new IOException("Invalid header, context group " + group[p] + " out of range");
+		}
+		int[][] groupTable = new int[groups][];
+		FlatTree tree = new FlatTree(257);
+		for (int g = 0; g < groups; g++) groupTable[g] = readDecodeTable(inputBitStream, 257, tree);
+		int[][] table = new int[256][]; // lookup table of each context
+		for (int p = 0; p < 256; p++) table[p] = groupTable[group[p]];
+		
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count = 0;
+		int prev = 0;
+		while (true) {
+			int entry = table[prev][inputBitStream.peekBits(TABLE_BITS)];
+			if (entry < 0) throw new IOException("Encoded data contains an invalid code");
+			inputBitStream.skipBits(entry >>> 16);
+			if (inputBitStream.pastEnd()) throw new EOFException("Encoded data ended before end-of-file character");
+			int character = entry & 0xFFFF;
+			if (character == 256) break;
+			buffer[count++] = (byte) character;
+			if (count == BUFFER_SIZE) {
+				output.write(buffer, 0, count);
+				count = 0;
+			}
+			prev = character;
+		}
+		output.write(buffer, 0, count);
+	}
+	
+	/**
+	 * Reads code lengths of at most TABLE_BITS bits and builds their lookup table, which then needs no slow path
+	 * @param bitStream input parameter where the code lengths are read from
+	 * @param alphabetSize number of symbols
+	 * @param tree work parameter, rebuilt from the code lengths
+	 * @return lookup table where each entry is (length<<16 | symbol) or INVALID
+	 * @throws IOException indicates I/O errors for the input stream, or code lengths that are not valid
+	 */
+	private int[] readDecodeTable(InBitStream bitStream, int alphabetSize, FlatTree tree) throws IOException {
+		int[] codeLength = readCodeLengths(bitStream, alphabetSize);
+		for (int length : codeLength) {
+			if (length > TABLE_BITS) throw new IOException("Invalid header, code longer than " + TABLE_BITS + " bits");
+		}
+		tree.buildCanonical(codeLength);
+		return new DecodeTable(tree, false).table; // the tree may be rebuilt afterwards, only the table is kept
+	}
+	
+	/**
+	 * Encodes input in WORDS format, for natural-language text: input is split in tokens, runs of word characters
+	 * (letters, digits and bytes past 127, as in UTF-8 letters) or of other characters, at most WORDS_MAX_TOKEN long,
+	 * and tokens repeated often enough get a symbol of their own after the 256 characters and "end-of-file"; other tokens
+	 * are coded character by character. Format byte, number of dictionary tokens (16 bits), the tokens in sorted order
+	 * each as the length of the prefix shared with the previous one and the length of the rest (a byte each) followed by
+	 * the rest, the code lengths (at most WORDS_LENGTH_LIMIT bits), then the codes and "end-of-file"
+	 * Inputs that would not be smaller this way than in CANONICAL format are written by encodeCanonical instead
+	 * @param input - input parameter, the pieces of the input, in order (tokens never span two pieces)
+	 * @param output - output parameter where the encoded input is written to; it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeWords(ByteBuffer[] input, OutputStream output) throws IOException {
+		HashMap<String, long[]> tokenCount = new HashMap<>();
+		long[] charCount = new long[256]; // characters making up tokens of one character
+		for (ByteBuffer segment : input) {
+			for (int i = segment.position(), end; i < segment.limit(); i = end) {
+				end = tokenEnd(segment, i);
+				if (end - i == 1) charCount[segment.get(i) & 0xFF]++;
+				else tokenCount.computeIfAbsent(token(segment, i, end), t -> new long[1])[0]++;
+			}
+		}
+		
+		// keep the tokens saving the most characters, as long as that outweighs their place in the header
+		ArrayList<String> dictionary = new ArrayList<>();
+		for (String t : tokenCount.keySet()) {
+			if (tokenCount.get(t)[0] * (t.length() - 1) > t.length() + 2) dictionary.add(t);
+		}
+		dictionary.sort(Comparator.comparingLong((String t) -> tokenCount.get(t)[0] * (t.length() - 1)).reversed());
+		if (dictionary.size() > WORDS_MAX_DICTIONARY) dictionary.subList(WORDS_MAX_DICTIONARY, dictionary.size()).clear();
+		dictionary.sort(null); // chars of these strings are bytes, so this is byte order and neighbours share prefixes
+		HashMap<String, Integer> symbolOf = new HashMap<>();
+		for (String t : dictionary) symbolOf.put(t, 257 + symbolOf.size());
+		
+		long[] freq = new long[257 + dictionary.size()];
+		long[] charFreq = new long[257]; // frequencies for CANONICAL format
+		for (int c = 0; c < 256; c++) freq[c] = charFreq[c] = charCount[c];
+		freq[256] = charFreq[256] = 1; // EOF
+		for (String t : tokenCount.keySet()) {
+			long n = tokenCount.get(t)[0];
+			Integer symbol = symbolOf.get(t);
+			if (symbol != null) freq[symbol] += n;
+			for (int j = 0; j < t.length(); j++) {
+				if (symbol == null) freq[t.charAt(j)] += n;
+				charFreq[t.charAt(j)] += n;
+			}
+		}
+		int[] codeLength = buildLimitedCodeLengths(freq, WORDS_LENGTH_LIMIT);
+		
+		// length of the prefix each token shares with the one before it; then measure the result
+		int[] shared = new int[dictionary.size()];
+		long bits = 8 + 16;
+		for (int k = 0; k < shared.length; k++) {
+			String t = dictionary.get(k);
+			String previous = (k == 0) ? "" : dictionary.get(k - 1);
+			while (shared[k] < previous.length() && previous.charAt(shared[k]) == t.charAt(shared[k])) shared[k]++; // t sorts after previous, so it is longer than shared[k]
+			bits += 16 + 8 * (t.length() - shared[k]);
+		}
+		OutBitStream header = new OutBitStream(ByteBuffer.allocate(freq.length + 16)); // measures the code lengths, at most 6 bits each
+		writeCodeLengths(header, codeLength);
+		bits += header.position();
+		for (int c = 0; c < freq.length; c++) bits += freq[c] * codeLength[c];
+		if ((bits + 7) / 8 >= canonicalBytes(charFreq, buildCanonicalCodeLengths(charFreq))) {
+			encodeCanonical(input, output); // not text, or too little of it for a dictionary to pay off
+			return;
+		}
+		
+		output.write(Format.WORDS.tag);
+		OutBitStream bitStream = new OutBitStream(output);
+		bitStream.writeBits(dictionary.size(), 16);
+		for (int k = 0; k < shared.length; k++) {
+			String t = dictionary.get(k);
+			bitStream.writeBits(shared[k], 8);
+			bitStream.writeBits(t.length() - shared[k], 8);
+			for (int j = shared[k]; j < t.length(); j++) bitStream.writeBits(t.charAt(j), 8);
+		}
+		writeCodeLengths(bitStream, codeLength);
+		long[] codeTable = buildCodeTable(codeLength);
+		
+		for (ByteBuffer segment : input) {
+			for (int i = segment.position(), end; i < segment.limit(); i = end) {
+				end = tokenEnd(segment, i);
+				Integer symbol = (end - i == 1) ? null : symbolOf.get(token(segment, i, end));
+				if (symbol != null) {
+					long entry = codeTable[symbol];
+					bitStream.writeBits(entry >>> 6, (int) entry & 63);
+				} else {
+					for (int j = i; j < end; j++) {
+						long entry = codeTable[segment.get(j) & 0xFF];
+						bitStream.writeBits(entry >>> 6, (int) entry & 63);
+					}
+				}
+			}
+		}
+		long entry = codeTable[256]; // EOF
+		bitStream.writeBits(entry >>> 6, (int) entry & 63);
+		bitStream.close();
+	}
+	
+	/**
+	 * Finds where the WORDS format token starting at index start of segment ends: the token is the longest run of
+	 * characters of the same kind as the first one (word characters or not), at most WORDS_MAX_TOKEN long
+	 * @param segment input parameter, a piece of the input
+	 * @param start index of the first character of the token, below the limit of segment
+	 * @return index just past the last character of the token
+	 */
+	private static int tokenEnd(ByteBuffer segment, int start) {
+		boolean word = isWordCharacter(segment.get(start));
+		int last = (int) Math.min(segment.limit(), (long) start + WORDS_MAX_TOKEN);
+		int end = start + 1;
+		while (end < last && isWordCharacter(segment.get(end)) == word) end++;
+		return end;
+	}
+	
+	private static boolean isWordCharacter(byte c) { // letters, digits and bytes past 127 (parts of UTF-8 characters)
+		int lower = c | 0x20;
+		return c < 0 || (c >= '0' && c <= '9') || (lower >= 'a' && lower <= 'z');
+	}
+	
+	private static String token(ByteBuffer segment, int start, int end) { // one char per byte, used as a dictionary key
+		byte[] bytes = new byte[end - start];
+		segment.get(start, bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * Decodes the rest of a WORDS format input whose format byte was already read; codes are decoded with a
+	 * lookup table, taking its slow path for those longer than TABLE_BITS
+	 * @param input input parameter, the encoded data following the format byte
+	 * @param output output parameter where the decoded bytes will be written to (left open)
+	 * @throws IOException indicates I/O errors for input/output streams, or input that is not valid
+	 */
+	private void decodeWords(InputStream input, OutputStream output) throws IOException {
+		InBitStream inputBitStream = new InBitStream(input);
+		int tokens = inputBitStream.peekBits(16);
+		inputBitStream.skipBits(16);
+		if (tokens > WORDS_MAX_DICTIONARY) throw new IOException("Invalid header, " + tokens + " dictionary tokens");
+		byte[][] dictionary = new byte[tokens][];
+		byte[] previous = new byte[0];
+		for (int k = 0; k < tokens; k++) {
+			int shared = inputBitStream.peekBits(8);
+			int rest = inputBitStream.peekBits(16) & 0xFF;
+			inputBitStream.skipBits(16);
+			if (shared > previous.length || shared + rest > WORDS_MAX_TOKEN) throw new IOException("Invalid header, dictionary token " + k + " is not valid");
+			dictionary[k] = Arrays.copyOf(previous, shared + rest);
+			for (int j = shared; j < dictionary[k].length; j++) {
+				dictionary[k][j] = (byte) inputBitStream.peekBits(8);
+				inputBitStream.skipBits(8);
+			}
+			if (inputBitStream.pastEnd()) throw new EOFException("Encoded file ended inside its header");
+			previous = dictionary[k];
+		}
+		int[] codeLength = readCodeLengths(inputBitStream, 257 + tokens);
+		for (int length : codeLength) {
+			if (length > WORDS_LENGTH_LIMIT) throw new IOException("Invalid header, code longer than " + WORDS_LENGTH_LIMIT + " bits");
+		}
+		FlatTree tree = new FlatTree(257 + tokens);
+		tree.buildCanonical(codeLength);
+		DecodeTable decodeTable = new DecodeTable(tree, false); // symbols past 255 never go in multi
+		int[] table = decodeTable.table;
+		
+		byte[] buffer = new byte[BUFFER_SIZE + WORDS_MAX_TOKEN];
+		int count = 0;
+		while (true) {
+			int entry = table[inputBitStream.peekBits(TABLE_BITS)];
+			int symbol;
+			if (entry >= 0) {
+				inputBitStream.skipBits(entry >>> 16);
+				symbol = entry & 0xFFFF;
+			} else {
+				symbol = decodeTable.decodeSlow(inputBitStream, entry);
+			}
+			if (inputBitStream.pastEnd()) throw new EOFException("Encoded data ended before end-of-file character");
+			if (symbol < 256) {
+				buffer[count++] = (byte) symbol;
+			} else if (symbol == 256) {
+				break;
+			} else {
+				byte[] t = dictionary[symbol - 257];
+				System.arraycopy(t, 0, buffer, count, t.length);
+				count += t.length;
+			}
+			if (count >= BUFFER_SIZE) {
+				output.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+		output.write(buffer, 0, count);
+	}
+	
+	/**
+	 * Encodes input in LZ format (deflate-style): each block of blockSize bytes is parsed by an LZParser into characters
+	 * and matches, then written as bit 1, the code lengths of the literal/length and distance alphabets, the codes
+	 * of the tokens and the end-of-block symbol 256; bit 0 follows the last block after the format byte
+	 * A match is written as its length symbol and extra bits, then its distance symbol and extra bits
+	 * @param input - input parameter, the pieces of the input, in order (matches never span two pieces)
+	 * @param output - output parameter where the encoded input is written to; it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeLZ(ByteBuffer[] input, OutputStream output) throws IOException {
+		output.write(Format.LZ.tag);
+		OutBitStream bitStream = new OutBitStream(output);
+		int[] token = new int[blockSize];
+		long[] literalFreq = new long[LZ_LITERALS];
+		long[] distanceFreq = new long[LZ_DISTANCES];
+		for (ByteBuffer segment : input) {
+			LZParser parser = new LZParser(segment);
+			for (int start = segment.position(); start < segment.limit(); start += blockSize) {
+				int n = parser.parse(start, Math.min(segment.limit(), start + blockSize), token);
+				Arrays.fill(literalFreq, 0);
+				Arrays.fill(distanceFreq, 0);
+				for (int t = 0; t < n; t++) {
+					if (token[t] < 256) {
+						literalFreq[token[t]]++;
+					} else {
+						literalFreq[257 + LZ_LENGTH_CODE[token[t] >>> 16]]++;
+						distanceFreq[LZ_DISTANCE_CODE[token[t] & 0xFFFF]]++;
+					}
+				}
+				literalFreq[256] = 1; // end of block
+				if (distanceFreq[0] == 0) distanceFreq[0] = 1; // the distance table needs at least one code
+				int[] literalLength = buildLimitedCodeLengths(literalFreq, LENGTH_LIMIT);
+				int[] distanceLength = buildLimitedCodeLengths(distanceFreq, LENGTH_LIMIT);
+				bitStream.writeBits(1, 1);
+				writeCodeLengths(bitStream, literalLength);
+				writeCodeLengths(bitStream, distanceLength);
+				long[] literalCode = buildCodeTable(literalLength);
+				long[] distanceCode = buildCodeTable(distanceLength);
+				
+				for (int t = 0; t < n; t++) {
+					long entry;
+					if (token[t] < 256) {
+						entry = literalCode[token[t]];
+						bitStream.writeBits(entry >>> 6, (int) entry & 63);
+						continue;
+					}
+					int length = token[t] >>> 16, distance = token[t] & 0xFFFF;
+					int k = LZ_LENGTH_CODE[length];
+					entry = literalCode[257 + k]; // symbol followed by its extra bits, in one write
+					bitStream.writeBits(((entry >>> 6) << LZ_LENGTH_EXTRA[k]) | (length - LZ_LENGTH_BASE[k]), ((int) entry & 63) + LZ_LENGTH_EXTRA[k]);
+					k = LZ_DISTANCE_CODE[distance];
+					entry = distanceCode[k];
+					bitStream.writeBits(((entry >>> 6) << LZ_DISTANCE_EXTRA[k]) | (distance - LZ_DISTANCE_BASE[k]), ((int) entry & 63) + LZ_DISTANCE_EXTRA[k]);
+				}
+				long entry = literalCode[256];
+				bitStream.writeBits(entry >>> 6, (int) entry & 63);
+			}
+		}
+		bitStream.writeBits(0, 1); // no more blocks
+		bitStream.close();
+	}
+	
+	/**
+	 * Decodes the rest of an LZ format input whose format byte was already read, always with lookup tables
+	 * Decoded bytes are kept in a buffer holding the last LZ_WINDOW bytes written to output, which matches copy from
+	 * @param input input parameter, the encoded data following the format byte
+	 * @param output output parameter where the decoded bytes will be written to (left open)
+	 * @throws IOException indicates I/O errors for input/output streams, or input that is not valid
+	 */
+	private void decodeLZ(InputStream input, OutputStream output) throws IOException {
+		InBitStream inputBitStream = new InBitStream(input);
+		FlatTree tree = new FlatTree(LZ_LITERALS);
+		byte[] buffer = new byte[LZ_WINDOW + BUFFER_SIZE + LZ_MAX_MATCH];
+		int count = 0;   // bytes decoded into buffer
+		int written = 0; // bytes of buffer already written to output
+		
+		while (true) {
+			int more = inputBitStream.peekBits(1);
+			inputBitStream.skipBits(1);
+			if (inputBitStream.pastEnd()) throw new EOFException("Encoded data ended before its last block");
+			if (more == 0) break;
+			int[] literalTable = readDecodeTable(inputBitStream, LZ_LITERALS, tree);
+			int[] distanceTable = readDecodeTable(inputBitStream, LZ_DISTANCES, tree);
+			while (true) {
+				int entry = literalTable[inputBitStream.peekBits(TABLE_BITS)];
+				if (entry < 0) throw new IOException("Encoded data contains an invalid code");
+				inputBitStream.skipBits(entry >>> 16);
+				int symbol = entry & 0xFFFF;
+				if (symbol < 256) {
+					buffer[count++] = (byte) symbol;
+				} else if (symbol == 256) { // end of block
+					break;
+				} else {
+					int k = symbol - 257;
+					if (k >= LZ_LENGTH_BASE.length) throw new IOException("Encoded data contains an invalid length");
+					int length = LZ_LENGTH_BASE[k] + readExtraBits(inputBitStream, LZ_LENGTH_EXTRA[k]);
+					entry = distanceTable[inputBitStream.peekBits(TABLE_BITS)];
+					if (entry < 0) throw new IOException("Encoded data contains an invalid code");
+					inputBitStream.skipBits(entry >>> 16);
+					k = entry & 0xFFFF;
+					int distance = LZ_DISTANCE_BASE[k] + readExtraBits(inputBitStream, LZ_DISTANCE_EXTRA[k]);
+					if (distance > count) throw new IOException("Encoded data contains a match before the start of the data");
+					if (distance >= length) {
+						System.arraycopy(buffer, count - distance, buffer, count, length);
+					} else { // match overlaps the bytes it produces
+						for (int j = 0; j < length; j++) buffer[count + j] = buffer[count - distance + j];
+					}
+					count += length;
+				}
+				if (inputBitStream.pastEnd()) throw new EOFException("Encoded data ended inside a block");
+				if (count > LZ_WINDOW + BUFFER_SIZE) { // write decoded bytes, keep the last LZ_WINDOW ones
+					output.write(buffer, written, count - written);
+					System.arraycopy(buffer, count - LZ_WINDOW, buffer, 0, LZ_WINDOW);
+					count = written = LZ_WINDOW;
+				}
+			}
+		}
+		output.write(buffer, written, count - written);
+	}
+	
+	private int readExtraBits(InBitStream bitStream, int n) throws IOException { // next n (0..13) bits as a number
+		if (n == 0) return 0;
+		int bits = bitStream.peekBits(n);
+		bitStream.skipBits(n);
+		return bits;
+	}
+	
+	/**
+	 * Encodes input in BWT or INTERLEAVED format: input is split in blocks of blockSize bytes (at most BWT_MAX_BLOCK for BWT),
+	 * which are encoded in parallel by BlockEncoder tasks (see encodeBWTBlock, encodeInterleavedBlock) and written in order
+	 * as frames like in STREAM format: format byte, then for each block its length (int), the length of its encoding (int)
+	 * and its encoding, then int 0
+	 * @param input - input parameter, the pieces of the input, in order
+	 * @param output - output parameter where the encoded input is written to; it is closed at the end
+	 * @param format - BWT or INTERLEAVED
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeFrames(ByteBuffer[] input, OutputStream output, Format format) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+		out.write(format.tag);
+		int size = (format == Format.BWT) ? Math.min(blockSize, BWT_MAX_BLOCK) : blockSize;
+		int window = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+		ArrayDeque<BlockEncoder> pending = new ArrayDeque<>();
+		for (ByteBuffer segment : input) {
+			for (int p = segment.position(); p < segment.limit(); p += size) {
+				ByteBuffer block = segment.duplicate().position(p).limit(Math.min(p + size, segment.limit())).slice();
+				BlockEncoder task = new BlockEncoder(block, format);
+				task.fork();
+				pending.add(task);
+				while (pending.size() >= window || (pending.size() > 0 && pending.peek().isDone())) writeFrame(pending.remove(), out);
+			}
+		}
+		while (!pending.isEmpty()) writeFrame(pending.remove(), out);
+		out.writeInt(0); // end of stream
+		out.close();
+	}
+	
+	private void writeFrame(BlockEncoder task, DataOutputStream out) throws IOException {
+		byte[] encoded = task.result();
+		out.writeInt(task.block.remaining());
+		out.writeInt(encoded.length);
+		out.write(encoded);
+	}
+	
+	/**
+	 * Encodes one block for BWT format: the Burrows-Wheeler transform of the block (last column of its sorted rotations,
+	 * found from its suffix array) turns repeated contexts into runs of equal characters, move-to-front turns
+	 * those into runs of 0's, and each run of 0's becomes its length written with symbols BWT_RUNA/BWT_RUNB
+	 * Written as the row of the original block (32 bits), code lengths of the symbols, their codes and BWT_END
+	 * @param block - input parameter, the bytes to encode
+	 * @param output - output parameter where the encoded block is written to
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeBWTBlock(ByteBuffer block, OutputStream output) throws IOException {
+		int n = block.remaining();
+		int[] s = new int[n + 1];
+		for (int i = 0; i < n; i++) s[i] = (block.get(block.position() + i) & 0xFF) + 1; // 0 is the sentinel, smaller than all characters
+		int[] sa = suffixArray(s, 257);
+		byte[] last = new byte[n]; // last column of the sorted rotations of the block with its sentinel, without the sentinel
+		int primary = 0;           // row of the sentinel in the last column
+		for (int i = 0, j = 0; i <= n; i++) {
+			if (sa[i] == 0) primary = i;
+			else last[j++] = (byte) (s[sa[i] - 1] - 1);
+		}
+		
+		int[] symbol = sa; // at most one symbol per character plus BWT_END
+		long[] freq = new long[BWT_END + 1];
+		byte[] order = new byte[256]; // move-to-front list
+		for (int c = 0; c < 256; c++) order[c] = (byte) c;
+		int m = 0, run = 0;
+		for (int i = 0; i <= n; i++) {
+			if (i < n && last[i] == order[0]) {
+				run++;
+				continue;
+			}
+			if (run > 0) { // run of 0's, its length is written least significant digit first
+				for (run--; ; run = (run - 2) / 2) {
+					symbol[m] = (run & 1) == 0 ? BWT_RUNA : BWT_RUNB;
+					freq[symbol[m++]]++;
+					if (run < 2) break;
+				}
+				run = 0;
+			}
+			if (i == n) break;
+			byte c = last[i];
+			int k = 1;
+			while (order[k] != c) k++;
+			System.arraycopy(order, 0, order, 1, k);
+			order[0] = c;
+			symbol[m++] = k + 1;
+			freq[k + 1]++;
+		}
+		symbol[m++] = BWT_END;
+		freq[BWT_END]++;
+		
+		int[] codeLength = buildLimitedCodeLengths(freq, LENGTH_LIMIT);
+		long[] codeTable = buildCodeTable(codeLength);
+		OutBitStream bitStream = new OutBitStream(output);
+		bitStream.writeBits(primary, 32);
+		writeCodeLengths(bitStream, codeLength);
+		for (int i = 0; i < m; i++) {
+			long entry = codeTable[symbol[i]];
+			bitStream.writeBits(entry >>> 6, (int) entry & 63);
+		}
+		bitStream.close();
+	}
+	
+	/**
+	 * Sorts the suffixes of s in linear time with the SA-IS algorithm: suffixes are S-type (smaller than the next suffix)
+	 * or L-type, the LMS suffixes (S-type after L-type) are sorted first, recursively on the string of the ranks
+	 * of their LMS substrings if those are not all different, and their order induces the order of all suffixes
+	 * @param s input parameter, the string; its last value must be 0 and 0 must appear nowhere else (sentinel)
+	 * @param alphabetSize all values of s are in 0..alphabetSize-1
+	 * @return array sa where sa[i] is the start of the i-th smallest suffix of s
+	 */
+	private int[] suffixArray(int[] s, int alphabetSize) {
+		int n = s.length;
+		int[] sa = new int[n];
+		if (n == 1) return sa;
+		boolean[] sType = new boolean[n];
+		sType[n - 1] = true;
+		for (int i = n - 2; i >= 0; i--) sType[i] = s[i] < s[i + 1] || (s[i] == s[i + 1] && sType[i + 1]);
+		int[] bucket = new int[alphabetSize];
+		
+		// sort the LMS substrings: put LMS positions at the end of their buckets, then induce
+		Arrays.fill(sa, -1);
+		bucketBounds(s, bucket, true);
+		for (int i = 1; i < n; i++) if (isLMS(sType, i)) sa[--bucket[s[i]]] = i;
+		induceSort(s, sa, sType, bucket);
+		
+		// name the LMS substrings by rank, equal substrings getting the same name; names are stored at sa[n1 + position/2]
+		int n1 = 0;
+		for (int i = 0; i < n; i++) if (isLMS(sType, sa[i])) sa[n1++] = sa[i];
+		Arrays.fill(sa, n1, n, -1);
+		int names = 0, prev = -1;
+		for (int i = 0; i < n1; i++) {
+			int pos = sa[i];
+			boolean different = false;
+			for (int d = 0; d < n; d++) { // the unique sentinel ends every comparison
+				if (prev == -1 || s[pos + d] != s[prev + d] || sType[pos + d] != sType[prev + d]) {
+					different = true;
+					break;
+				}
+				if (d > 0 && (isLMS(sType, pos + d) || isLMS(sType, prev + d))) break;
+			}
+			if (different) {
+				names++;
+				prev = pos;
+			}
+			sa[n1 + pos / 2] = names - 1; // LMS positions are at least 2 apart
+		}
+		int[] s1 = new int[n1]; // names in the order of the positions, ends with the name 0 of the sentinel
+		for (int i = n1, j = 0; i < n; i++) if (sa[i] >= 0) s1[j++] = sa[i];
+		
+		// sort the LMS suffixes
+		int[] sa1;
+		if (names < n1) {
+			sa1 = suffixArray(s1, names);
+		} else {
+			sa1 = new int[n1];
+			for (int i = 0; i < n1; i++) sa1[s1[i]] = i;
+		}
+		
+		// put the sorted LMS suffixes at the end of their buckets, then induce the order of all suffixes
+		for (int i = 1, j = 0; i < n; i++) if (isLMS(sType, i)) s1[j++] = i; // s1[j] = position of the j-th LMS suffix
+		Arrays.fill(sa, -1);
+		bucketBounds(s, bucket, true);
+		for (int i = n1 - 1; i >= 0; i--) {
+			int j = s1[sa1[i]];
+			sa[--bucket[s[j]]] = j;
+		}
+		induceSort(s, sa, sType, bucket);
+		return sa;
+	}
+	
+	private boolean isLMS(boolean[] sType, int i) { // suffix i is S-type and suffix i-1 is L-type
+		return i > 0 && sType[i] && !sType[i - 1];
+	}
+	
+	private void bucketBounds(int[] s, int[] bucket, boolean end) { // start (or end if end is set) of the bucket of each value in sa
+		Arrays.fill(bucket, 0);
+		for (int c : s) bucket[c]++;
+		int sum = 0;
+		for (int c = 0; c < bucket.length; c++) {
+			sum += bucket[c];
+			bucket[c] = end ? sum : sum - bucket[c];
+		}
+	}
+	
+	private void induceSort(int[] s, int[] sa, boolean[] sType, int[] bucket) { // L-type suffixes from left to right, then S-type from right to left
+		bucketBounds(s, bucket, false);
+		for (int i = 0; i < sa.length; i++) {
+			int j = sa[i] - 1;
+			if (j >= 0 && !sType[j]) sa[bucket[s[j]]++] = j;
+		}
+		bucketBounds(s, bucket, true);
+		for (int i = sa.length - 1; i >= 0; i--) {
+			int j = sa[i] - 1;
+			if (j >= 0 && sType[j]) sa[--bucket[s[j]]] = j;
+		}
+	}
+	
+	/**
+	 * Decodes the rest of a BWT or INTERLEAVED format input whose format byte was already read: frames are read in order
+	 * and decoded in parallel by FrameDecoder tasks, with a bounded number of them in flight
+	 * @param input input parameter, the frames following the format byte
+	 * @param output output parameter where the decoded bytes will be written to (left open)
+	 * @param format BWT or INTERLEAVED
+	 * @throws IOException indicates I/O errors for input/output streams, or input that is not valid
+	 */
+	private void decodeFrames(InputStream input, OutputStream output, Format format) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		int window = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+		ArrayDeque<FrameDecoder> pending = new ArrayDeque<>();
+		long maxLength = (format == Format.BWT) ? BWT_MAX_BLOCK : MAP_SEGMENT;
+		int length;
+		while ((length = in.readInt()) != 0) {
+			int encodedLength = in.readInt();
+			// at most one symbol of at most LENGTH_LIMIT bits per byte, plus header and padding
+			if (length < 0 || length > maxLength || encodedLength <= 0 || encodedLength > 2L * length + 1024) throw new IOException("Invalid frame header");
+			byte[] encoded = new byte[encodedLength];
+			in.readFully(encoded);
+			FrameDecoder task = new FrameDecoder(encoded, length, format);
+			task.fork();
+			pending.add(task);
+			while (pending.size() >= window || (pending.size() > 0 && pending.peek().isDone())) output.write(pending.remove().result());
+		}
+		while (!pending.isEmpty()) output.write(pending.remove().result());
+	}
+	
+	/**
+	 * Decodes one block of BWT format: undoes the zero runs and move-to-front to get the last column, then
+	 * inverts the Burrows-Wheeler transform by following the last-to-first mapping from the row of the sentinel
+	 * @param encoded input parameter, the encoded block
+	 * @param n number of bytes of the block
+	 * @return the decoded block
+	 * @throws IOException if the encoded block is not valid
+	 */
+	private byte[] decodeBWTBlock(byte[] encoded, int n) throws IOException {
+		InBitStream inputBitStream = new InBitStream(new ByteArrayInputStream(encoded));
+		int primary = inputBitStream.peekBits(32);
+		inputBitStream.skipBits(32);
+		if (primary < 0 || primary > n) throw new IOException("Invalid block, row " + primary + " out of range");
+		int[] table = readDecodeTable(inputBitStream, BWT_END + 1, new FlatTree(BWT_END + 1));
+		
+		byte[] last = new byte[n];
+		byte[] order = new byte[256];
+		for (int c = 0; c < 256; c++) order[c] = (byte) c;
+		int count = 0;
+		long run = 0, digit = 1;
+		while (true) {
+			int entry = table[inputBitStream.peekBits(TABLE_BITS)];
+			if (entry < 0) throw new IOException("Encoded data contains an invalid code");
+			inputBitStream.skipBits(entry >>> 16);
+			if (inputBitStream.pastEnd()) throw new EOFException("Encoded block ended before its end symbol");
+			int symbol = entry & 0xFFFF;
+			if (symbol == BWT_RUNA || symbol == BWT_RUNB) {
+				run += (symbol == BWT_RUNA ? 1 : 2) * digit;
+				digit <<= 1;
+				if (run > n - count) throw new IOException("Invalid block, longer than " + n + " bytes");
+				continue;
+			}
+			if (run > 0) {
+				Arrays.fill(last, count, count + (int) run, order[0]);
+				count += run;
+				run = 0;
+				digit = 1;
+			}
+			if (symbol == BWT_END) break;
+			if (count == n) throw new IOException("Invalid block, longer than " + n + " bytes");
+			int k = symbol - 1;
+			byte c = order[k];
+			System.arraycopy(order, 0, order, 1, k);
+			order[0] = c;
+			last[count++] = c;
+		}
+		if (count != n) throw new IOException("Invalid block, shorter than " + n + " bytes");
+		
+		// row i of the last column with the sentinel: last[i] before primary, sentinel at primary, last[i-1] after
+		int[] first = new int[257]; // first row starting with each character, the sentinel row 0 being first of all
+		for (byte c : last) first[(c & 0xFF) + 1]++;
+		first[0] = 1;
+		for (int c = 1; c < 257; c++) first[c] += first[c - 1];
+		// step[i] = (row starting with the character c that ends row i) << 8 | c, so each step of the walk is a single load
+		int[] step = new int[n + 1];
+		for (int i = 0; i <= n; i++) {
+			if (i == primary) step[i] = -1;
+			else {
+				int c = last[i < primary ? i : i - 1] & 0xFF;
+				step[i] = (first[c]++ << 8) | c;
+			}
+		}
+		byte[] block = new byte[n];
+		int row = 0; // row starting with the sentinel, it ends with the last character of the block
+		for (int k = n - 1; k >= 0; k--) {
+			int entry = step[row];
+			if (entry == -1) throw new IOException("Invalid block, transform cannot be inverted");
+			block[k] = (byte) entry;
+			row = entry >>> 8;
+		}
+		return block;
+	}
+	
+	/**
+	 * Encodes one block for INTERLEAVED format: the block is cut in 4 quarters (the last one taking the 0 to 3 bytes left over)
+	 * that are coded with one canonical code table into 4 separate sub-streams, so that a decoder can follow the 4 chains
+	 * of lookups side by side instead of waiting on each code to know where the next one starts
+	 * Written as the format byte, the lengths of the 4 sub-streams (int each), the code lengths padded to a byte,
+	 * then the sub-streams each padded to a byte and 8 bytes of 0's, so that the decoder can load any sub-stream
+	 * 8 bytes at a time; quarters have a known length so there is no "end-of-file" code
+	 * If coding would not make the block smaller it is written in STORED format instead
+	 * @param block - input parameter, the bytes to encode
+	 * @param output - output parameter where the encoded block is written to
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeInterleavedBlock(ByteBuffer block, OutputStream output) throws IOException {
+		int[] codeLength = buildCanonicalCodeLengths(countFrequencies(new ByteBuffer[] { block }));
+		if (codeLength == null) {
+			encodeStored(new ByteBuffer[] { block }, output);
+			return;
+		}
+		long[] codeTable = buildCodeTable(codeLength);
+		int n = block.remaining(), quarter = n >> 2;
+		ByteArrayOutputStream[] streams = new ByteArrayOutputStream[4];
+		for (int k = 0; k < 4; k++) {
+			int start = block.position() + k * quarter;
+			streams[k] = new ByteArrayOutputStream(quarter / 2 + 16);
+			OutBitStream bitStream = new OutBitStream(streams[k]);
+			encodeBytes(block.duplicate().position(start).limit(k == 3 ? block.limit() : start + quarter), codeTable, bitStream);
+			bitStream.finish();
+		}
+		DataOutputStream out = new DataOutputStream(output);
+		out.write(Format.INTERLEAVED.tag);
+		for (ByteArrayOutputStream stream : streams) out.writeInt(stream.size());
+		OutBitStream header = new OutBitStream(out);
+		writeCodeLengths(header, codeLength);
+		header.finish();
+		for (ByteArrayOutputStream stream : streams) stream.writeTo(out);
+		out.write(new byte[8]);
+		out.flush();
+	}
+	
+	/**
+	 * Decodes one block of INTERLEAVED format: one step of the loop looks up the next code of each of the 4 sub-streams,
+	 * which do not depend on each other, and writes the 4 characters to their quarters of the block
+	 * The 4 bit readers are kept in local variables (bits not read yet in window[k]'s place, as in InBitStream) so that
+	 * they stay in registers; a reader loads 8 bytes at once when it has fewer than TABLE_BITS bits left
+	 * @param encoded input parameter, the encoded block
+	 * @param n number of bytes of the block
+	 * @return the decoded block
+	 * @throws IOException if the encoded block is not valid
+	 */
+	private byte[] decodeInterleavedBlock(byte[] encoded, int n) throws IOException {
+		Format format = Format.forTag(encoded[0] & 0xFF);
+		if (format == Format.STORED) {
+			if (encoded.length != n + 1) throw new IOException("Invalid block, " + (encoded.length - 1) + " bytes stored instead of " + n);
+			return Arrays.copyOfRange(encoded, 1, encoded.length);
+		}
+		if (format != Format.INTERLEAVED || encoded.length < 25) throw new IOException("Invalid block, unknown format");
+		ByteBuffer bytes = ByteBuffer.wrap(encoded);
+		long streamBytes = 0;
+		int[] streamStart = new int[5];
+		for (int k = 0; k < 4; k++) {
+			int size = bytes.getInt(1 + 4 * k);
+			if (size < 0) throw new IOException("Invalid block, sub-stream of " + size + " bytes");
+			streamBytes += size;
+			streamStart[k + 1] = size;
+		}
+		if (streamBytes > encoded.length - 25) throw new IOException("Invalid block, sub-streams longer than the block");
+		streamStart[0] = encoded.length - 8 - (int) streamBytes;
+		for (int k = 1; k <= 4; k++) streamStart[k] += streamStart[k - 1];
+		int[] table = readDecodeTable(new InBitStream(bytes.duplicate().position(17).limit(streamStart[0])), 257, new FlatTree(257));
+		
+		byte[] block = new byte[n];
+		int quarter = n >> 2;
+		long window0 = 0, window1 = 0, window2 = 0, window3 = 0; // bits not read yet, next bit to read is the most significant one
+		int bits0 = 0, bits1 = 0, bits2 = 0, bits3 = 0;          // number of bits stored in window
+		int next0 = streamStart[0], next1 = streamStart[1], next2 = streamStart[2], next3 = streamStart[3]; // next byte to load
+		// past the end of its sub-stream a reader adds 0's instead of loading, so a load at next always has next + 8 <= encoded.length
+		int end0 = streamStart[1], end1 = streamStart[2], end2 = streamStart[3], end3 = streamStart[4];
+		for (int i = 0; i < quarter; i++) {
+			if (bits0 < TABLE_BITS) {
+				int count = (64 - bits0) >>> 3;
+				if (next0 <= end0) window0 |= (bytes.getLong(next0) >>> (64 - 8 * count)) << (64 - bits0 - 8 * count);
+				next0 += count;
+				bits0 += 8 * count;
+			}
+			if (bits1 < TABLE_BITS) {
+				int count = (64 - bits1) >>> 3;
+				if (next1 <= end1) window1 |= (bytes.getLong(next1) >>> (64 - 8 * count)) << (64 - bits1 - 8 * count);
+				next1 += count;
+				bits1 += 8 * count;
+			}
+			if (bits2 < TABLE_BITS) {
+				int count = (64 - bits2) >>> 3;
+				if (next2 <= end2) window2 |= (bytes.getLong(next2) >>> (64 - 8 * count)) << (64 - bits2 - 8 * count);
+				next2 += count;
+				bits2 += 8 * count;
+			}
+			if (bits3 < TABLE_BITS) {
+				int count = (64 - bits3) >>> 3;
+				if (next3 <= end3) window3 |= (bytes.getLong(next3) >>> (64 - 8 * count)) << (64 - bits3 - 8 * count);
+				next3 += count;
+				bits3 += 8 * count;
+			}
+			int e0 = table[(int) (window0 >>> (64 - TABLE_BITS))];
+			int e1 = table[(int) (window1 >>> (64 - TABLE_BITS))];
+			int e2 = table[(int) (window2 >>> (64 - TABLE_BITS))];
+			int e3 = table[(int) (window3 >>> (64 - TABLE_BITS))];
+			// codes are at most LENGTH_LIMIT = TABLE_BITS long, so entries are INVALID (negative) or whole codes, which must not be "end-of-file"
+			if ((e0 | e1 | e2 | e3) < 0 || ((e0 | e1 | e2 | e3) & 256) != 0) throw new IOException("Encoded data contains an invalid code");
+			window0 <<= e0 >>> 16;
+			window1 <<= e1 >>> 16;
+			window2 <<= e2 >>> 16;
+			window3 <<= e3 >>> 16;
+			bits0 -= e0 >>> 16;
+			bits1 -= e1 >>> 16;
+			bits2 -= e2 >>> 16;
+			bits3 -= e3 >>> 16;
+			block[i] = (byte) e0;
+			block[quarter + i] = (byte) e1;
+			block[2 * quarter + i] = (byte) e2;
+			block[3 * quarter + i] = (byte) e3;
+		}
+		for (int i = 4 * quarter; i < n; i++) { // bytes left over, at the end of the last quarter
+			if (bits3 < TABLE_BITS) {
+				int count = (64 - bits3) >>> 3;
+				if (next3 <= end3) window3 |= (bytes.getLong(next3) >>> (64 - 8 * count)) << (64 - bits3 - 8 * count);
+				next3 += count;
+				bits3 += 8 * count;
+			}
+			int e3 = table[(int) (window3 >>> (64 - TABLE_BITS))];
+			if (e3 < 0 || (e3 & 256) != 0) throw new IOException("Encoded data contains an invalid code");
+			window3 <<= e3 >>> 16;
+			bits3 -= e3 >>> 16;
+			block[i] = (byte) e3;
+		}
+		// bits read from a sub-stream (bytes loaded less bits left in window) must not go past its end
+		if (8L * next0 - bits0 > 8L * end0 || 8L * next1 - bits1 > 8L * end1 || 8L * next2 - bits2 > 8L * end2 || 8L * next3 - bits3 > 8L * end3)
+			throw new EOFException("Encoded block ended before its last character");
+		return block;
+	}
+	
+	/**
+	 * Encodes input in BLOCKS format: input is split in blocks of blockSize bytes, which are encoded in parallel
+	 * by BlockEncoder tasks and written in order, followed by a BlockIndex
+	 * @param input - input parameter, the pieces of the mapped input file, in order
+	 * @param output - output parameter where the encoded input is written to; it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeBlocks(ByteBuffer[] input, OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+		out.write(Format.BLOCKS.tag);
+		out.writeInt(blockSize);
+		long position = 5; // bytes written so far
+		long originalLength = 0;
+		ArrayList<Long> bitOffset = new ArrayList<>();
+		ArrayList<Long> outputOffset = new ArrayList<>();
+		
+		// keep a bounded number of blocks in flight so memory does not grow with the input size
+		int window = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+		ArrayDeque<BlockEncoder> pending = new ArrayDeque<>();
+		for (ByteBuffer segment : input) {
+			for (int p = segment.position(); p < segment.limit(); p += blockSize) {
+				ByteBuffer block = segment.duplicate().position(p).limit(Math.min(p + blockSize, segment.limit())).slice();
+				outputOffset.add(originalLength);
+				originalLength += block.remaining();
+				BlockEncoder task = new BlockEncoder(block, Format.BLOCKS);
+				task.fork();
+				pending.add(task);
+				while (pending.size() >= window || (pending.size() > 0 && pending.peek().isDone())) {
+					bitOffset.add(8 * position);
+					position += writeBlock(pending.remove(), out);
+				}
+			}
+		}
+		while (!pending.isEmpty()) {
+			bitOffset.add(8 * position);
+			position += writeBlock(pending.remove(), out);
+		}
+		writeBlockIndex(out, originalLength, bitOffset, outputOffset, position);
+		out.close();
+	}
+	
+	private int writeBlock(BlockEncoder task, DataOutputStream out) throws IOException {
+		byte[] encoded = task.result();
+		out.write(encoded);
+		return encoded.length;
+	}
+	
+	/**
+	 * Encodes input in INDEXED format: like CANONICAL (with the block size after the format byte) but the position
+	 * of the first bit of every block of blockSize bytes is recorded in a BlockIndex written after the encoded data
+	 * @param input - input parameter, the pieces of the mapped input file, in order
+	 * @param output - output parameter where the encoded input is written to; it is closed at the end
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void encodeIndexed(ByteBuffer[] input, OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+		out.write(Format.INDEXED.tag);
+		out.writeInt(blockSize);
+		int[] codeLength = buildLimitedCodeLengths(countFrequencies(input), LENGTH_LIMIT);
+		long[] codeTable = buildCodeTable(codeLength);
+		OutBitStream bitStream = new OutBitStream(out);
+		writeCodeLengths(bitStream, codeLength);
+		
+		long originalLength = 0;
+		ArrayList<Long> bitOffset = new ArrayList<>();
+		ArrayList<Long> outputOffset = new ArrayList<>();
+		for (ByteBuffer segment : input) {
+			for (int p = segment.position(); p < segment.limit(); p += blockSize) {
+				ByteBuffer block = segment.duplicate().position(p).limit(Math.min(p + blockSize, segment.limit()));
+				bitOffset.add(40 + bitStream.position()); // format byte and block size take 40 bits
+				outputOffset.add(originalLength);
+				originalLength += block.remaining();
+				encodeBytes(block, codeTable, bitStream);
+			}
+		}
+		long eof = codeTable[256]; // EOF code, so that the file can also be decoded from start to end
+		bitStream.writeBits(eof >>> 6, (int) eof & 63);
+		bitStream.finish();
+		writeBlockIndex(out, originalLength, bitOffset, outputOffset, 5 + bitStream.position() / 8);
+		out.close();
+	}
+	
+	/**
+	 * Writes a BlockIndex (see class BlockIndex for the layout)
+	 * @param out output parameter, positioned at the end of the encoded blocks
+	 * @param originalLength number of bytes of the original file
+	 * @param bitOffset bit of the file where each block starts
+	 * @param outputOffset offset in the original file of the first byte of each block
+	 * @param indexPosition position of out in the file, where the index starts
+	 * @throws IOException indicates I/O errors for the output stream
+	 */
+	private void writeBlockIndex(DataOutputStream out, long originalLength, ArrayList<Long> bitOffset, ArrayList<Long> outputOffset, long indexPosition) throws IOException {
+		out.writeInt(bitOffset.size());
+		out.writeLong(originalLength);
+		for (int k = 0; k < bitOffset.size(); k++) {
+			out.writeLong(bitOffset.get(k));
+			out.writeLong(outputOffset.get(k));
+		}
+		out.writeLong(indexPosition);
+	}
+	
+	/**
+	 * Reads the index at the end of a BLOCKS file
+	 * @param channel input parameter, the open encoded file
+	 * @return the index of the file
+	 * @throws IOException indicates I/O errors, or an index that is not valid
+	 */
+	private BlockIndex readBlockIndex(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < 21) throw new IOException("Encoded file is too short for BLOCKS format");
+		BlockIndex index = new BlockIndex();
+		ByteBuffer header = readFully(channel, 1, 4);
+		index.blockSize = header.getInt();
+		long indexPosition = readFully(channel, size - 8, 8).getLong();
+		if (indexPosition < 5 || indexPosition > size - 20) throw new IOException("Invalid block index position");
+		ByteBuffer indexBytes = readFully(channel, indexPosition, (int) (size - 8 - indexPosition));
+		int count = indexBytes.getInt();
+		index.originalLength = indexBytes.getLong();
+		if (count < 0 || indexBytes.remaining() != 16L * count) throw new IOException("Invalid block index");
+		index.bitOffset = new long[count + 1];
+		index.outputOffset = new long[count + 1];
+		for (int k = 0; k < count; k++) {
+			index.bitOffset[k] = indexBytes.getLong();
+			index.outputOffset[k] = indexBytes.getLong();
+		}
+		index.bitOffset[count] = 8 * indexPosition;
+		index.outputOffset[count] = index.originalLength;
+		for (int k = 0; k < count; k++) {
+			if (index.bitOffset[k] < 40 || index.bitOffset[k] > index.bitOffset[k + 1]
+					|| index.outputOffset[k] != (long) k * index.blockSize || index.outputOffset[k] > index.outputOffset[k + 1]
+					|| index.bitOffset[k + 1] - index.bitOffset[k] > 8L * Integer.MAX_VALUE - 64)
+				throw new IOException("Block index does not match the blocks");
+		}
+		return index;
+	}
+	
+	private ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Encoded file is truncated");
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Decodes a BLOCKS or INDEXED file: each block is decoded by a BlockDecoder task on the ForkJoinPool,
+	 * which writes it to its own region of the output file
+	 * @param inputFileName the encoded file
+	 * @param format the format of the encoded file, BLOCKS or INDEXED
+	 * @param output output parameter, the file where the decoded bytes will be written to (left open)
+	 * @throws IOException indicates I/O errors for input/output files, or input that is not valid
+	 */
+	private void decodeBlocks(String inputFileName, Format format, FileChannel output) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ)) {
+			BlockIndex index = readBlockIndex(channel);
+			FlatTree root = (format == Format.INDEXED) ? readIndexedTree(channel, index) : null;
+			DecodeTable decodeTable = (root != null && tableDecoding) ? new DecodeTable(root, true) : null;
+			BlockDecoder[] tasks = new BlockDecoder[index.blockCount()];
+			for (int k = 0; k < tasks.length; k++) {
+				tasks[k] = new BlockDecoder(channel, output, index, k, root, decodeTable);
+				tasks[k].fork();
+			}
+			IOException error = null;
+			for (BlockDecoder task : tasks) {
+				try {
+					task.join();
+				} catch (UncheckedIOException e) {
+					if (error == null) error = e.getCause();
+				}
+			}
+			if (error != null) throw error;
+		}
+	}
+	
+	/**
+	 * Decodes the first bytes of block k of a BLOCKS or INDEXED file
+	 * @param in input parameter, the encoded file
+	 * @param index input parameter, the index of the encoded file
+	 * @param k the block to decode
+	 * @param root input parameter, tree for all blocks (INDEXED) or null if the block has its own header (BLOCKS)
+	 * @param decodeTable input parameter, lookup table for root, or null to walk the tree
+	 * @param output output parameter where the decoded bytes will be written to (left open)
+	 * @param limit number of bytes to decode, at most the length of the block
+	 * @throws IOException indicates I/O errors for input/output, or a block that is not valid
+	 */
+	private void decodeBlock(FileChannel in, BlockIndex index, int k, FlatTree root, DecodeTable decodeTable, OutputStream output, long limit) throws IOException {
+		long first = index.bitOffset[k] / 8;
+		long last = (index.bitOffset[k + 1] + 7) / 8;
+		ByteBuffer block = readFully(in, first, (int) (last - first));
+		InBitStream inputBitStream = new InBitStream(new ByteArrayInputStream(block.array()));
+		int skip = (int) (index.bitOffset[k] % 8);
+		if (skip > 0) { // block starts inside a byte
+			inputBitStream.peekBits(skip);
+			inputBitStream.skipBits(skip);
+		}
+		long length = index.outputOffset[k + 1] - index.outputOffset[k];
+		if (root == null) { // block is a whole CANONICAL, PACKED or STORED body with its own header
+			int tag = inputBitStream.peekBits(8);
+			inputBitStream.skipBits(8);
+			if (tag == Format.STORED.tag) { // copy the bytes in one write
+				if (block.limit() - 1 != length) throw new IOException("Block " + k + " has wrong length");
+				output.write(block.array(), 1, (int) limit);
+				return;
+			}
+			if (tag == Format.PACKED.tag) {
+				if (decodePacked(inputBitStream, output, limit) != limit) throw new IOException("Block " + k + " has wrong length");
+				return;
+			}
+			if (tag != Format.CANONICAL.tag) throw new IOException("Invalid block " + k);
+			DecodeScratch scratch = decodeScratch.get(); // rebuilt in place, each block decoder thread has its own
+			root = scratch.tree;
+			root.buildCanonical(readCodeLengths(inputBitStream, scratch.codeLength));
+			if (tableDecoding) {
+				decodeTable = scratch.table;
+				decodeTable.build(root, true);
+			}
+		}
+		
+		long decoded = (decodeTable != null) ? decodeDataTable(inputBitStream, decodeTable, output, limit)
+				: decodeData(inputBitStream, root, output, limit);
+		if (decoded != limit) throw new IOException("Block " + k + " has wrong length");
+	}
+	
+	/**
+	 * Reads the code lengths shared by all blocks of an INDEXED file, written after its format byte and block size
+	 * @param channel input parameter, the encoded file
+	 * @param index input parameter, the index of the encoded file
+	 * @return the canonical tree of the code lengths
+	 * @throws IOException indicates I/O errors for the input file, or code lengths that are not valid
+	 */
+	private FlatTree readIndexedTree(FileChannel channel, BlockIndex index) throws IOException {
+		long headerEnd = Math.min(index.bitOffset[index.blockCount()] / 8, 5 + BUFFER_SIZE);
+		ByteBuffer header = readFully(channel, 5, (int) (headerEnd - 5));
+		FlatTree root = new FlatTree(257);
+		root.buildCanonical(readCodeLengths(new InBitStream(new ByteArrayInputStream(header.array())), 257));
+		return root;
+	}
+	
 	/**
 	 * Method that implements Huffman encoding on plain input into encoded output
 	 * @param input - this is the file to be encoded (compressed)
@@ -269,21 +3132,86 @@ public class Huffman {
 	 * @throws IOException indicates problems with input/output streams
 	 */
 	public void encode(String inputFileName, String outputFileName) throws IOException {
-		System.out.println("\nEncoding "+inputFileName+ " " + outputFileName);
+		encode(inputFileName, outputFileName, Format.SERIALIZED);
+	}
+	
+	/**
+	 * Method that implements Huffman encoding on plain input into encoded output written in the given format
+	 * @param inputFileName - this is the file to be encoded (compressed)
+	 * @param outputFileName - this is the Huffman encoded file corresponding to input
+	 * @param format - format of the encoded file; decode recognizes it from the file itself
+	 * (STORED and PACKED are written as asked, even when another format would be smaller)
+	 * @throws IOException indicates problems with input/output streams
+	 * @throws IllegalArgumentException if format is PACKED and the input does not have between 1 and 16 different characters
+	 */
+	public void encode(String inputFileName, String outputFileName, Format format) throws IOException {
+		System.out.println("\nEncoding "+inputFileName+ " " + outputFileName + " (" + format + ")");
 		
-		// prepare input and output files streams
-		FileInputStream input = new FileInputStream(inputFileName);
-		FileInputStream copyinput = new FileInputStream(inputFileName); // create copy to read input twice
+		// map input once (both passes below read the mapping) and prepare output file stream
+		MappedByteBuffer[] input = (format == Format.STREAM) ? null : mapInput(inputFileName);
+		long[] packedFreq = null; // checked before the output file is created
+		if (format == Format.PACKED) {
+			packedFreq = countFrequencies(input);
+			if (packedWidth(packedFreq, Long.MAX_VALUE) == 0)
+				throw new IllegalArgumentException("PACKED format needs between 1 and 16 different characters, " + inputFileName + " does not have them");
+		}
 		FileOutputStream out = new FileOutputStream(outputFileName);
- 		ObjectOutputStream codedOutput= new ObjectOutputStream(out); // use ObjectOutputStream to print objects to file
  		
-		ArrayList<Integer> freqTable= buildFrequencyTable(input); // build frequencies from input
-		System.out.println("FrequencyTable is="+freqTable);
-		HuffmanTreeNode root= buildEncodingTree(freqTable); // build tree using frequencies
-		ArrayList<String> codes= buildEncodingTable(root);  // buildcodes for each character in file
-		System.out.println("EncodingTable is="+codes);
-		codedOutput.writeObject(freqTable); //write header with frequency table
-		encodeData(copyinput,codes,codedOutput); // write the Huffman encoding of each character in file
+		if (format == Format.CANONICAL) {
+			encodeCanonical(input, out);
+		} else if (format == Format.BLOCKS) {
+			encodeBlocks(input, out);
+		} else if (format == Format.INDEXED) {
+			encodeIndexed(input, out);
+		} else if (format == Format.ADAPTIVE) {
+			encodeAdaptive(input, out);
+		} else if (format == Format.CONTEXT) {
+			encodeContext(input, out);
+		} else if (format == Format.WORDS) {
+			encodeWords(input, out);
+		} else if (format == Format.LZ) {
+			encodeLZ(input, out);
+		} else if (format == Format.BWT || format == Format.INTERLEAVED) {
+			encodeFrames(input, out, format);
+		} else if (format == Format.STREAM) {
+			InputStream in = new FileInputStream(inputFileName);
+			encode(in, out);
+			in.close();
+			out.close();
+		} else if (format == Format.STORED) {
+			encodeStored(input, out);
+		} else if (format == Format.PACKED) {
+			encodePacked(input, packedFreq, packedWidth(packedFreq, Long.MAX_VALUE), new OutBitStream(out));
+		} else {
+			long[] freq = countFrequencies(input);
+			ArrayList<Integer> freqTable= buildFrequencyTable(freq); // build frequencies from input
+			HuffmanTreeNode root= buildEncodingTree(freqTable); // build tree using frequencies
+			FlatTree tree = new FlatTree(257);
+			tree.build(root);
+			System.out.println("FrequencyTable is="+freqTable);
+			ArrayList<String> codes= buildEncodingTable(root);  // buildcodes for each character in file
+			System.out.println("EncodingTable is="+codes);
+			long[] codeTable = buildCodeTable(tree);
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			ObjectOutputStream headerOutput = new ObjectOutputStream(header); // measures the header
+			headerOutput.writeObject(freqTable);
+			headerOutput.close();
+			long codedBits = 8L * header.size();
+			for (int c = 0; c < freq.length; c++) codedBits += freq[c] * (codeTable[c] & 63);
+			boolean coded = worthCoding(freq, codeTable, 8L * header.size());
+			int width = packedWidth(freq, coded ? (codedBits + 7) / 8 : Files.size(Paths.get(inputFileName)) + 1);
+			if (width > 0) {
+				System.out.println("Input has at most 16 different characters, it is written with " + width + " bit codes");
+				encodePacked(input, freq, width, new OutBitStream(out));
+			} else if (coded) {
+				ObjectOutputStream codedOutput= new ObjectOutputStream(out); // use ObjectOutputStream to print objects to file
+				codedOutput.writeObject(freqTable); //write header with frequency table
+				encodeData(input, codeTable, new OutBitStream(codedOutput)); // write the Huffman encoding of each character in file
+			} else {
+				System.out.println("Input cannot be compressed, it is stored as is");
+				encodeStored(input, out);
+			}
+		}
 		System.out.println("Number of bytes in input file: " + Files.size(Paths.get(inputFileName)));
 		System.out.println("Number of bytes in output file: " + Files.size(Paths.get(outputFileName)));
 	}
@@ -298,20 +3226,274 @@ public class Huffman {
 	public void decode (String inputFileName, String outputFileName) throws IOException, ClassNotFoundException {
 		System.out.println("\nDecoding "+inputFileName+ " " + outputFileName);
 		// prepare input and output file streams
-		FileInputStream in = new FileInputStream(inputFileName);
- 		ObjectInputStream codedInput= new ObjectInputStream(in);
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(inputFileName), BUFFER_SIZE);
+		in.mark(1);
+		Format format = Format.forTag(in.read()); // first byte tells the format
+		in.reset();
+		if (format == null) {
+			in.close();
+			throw new IOException(inputFileName + " is not a Huffman encoded file");
+		}
  		FileOutputStream output = new FileOutputStream(outputFileName);
  		
-		ArrayList<Integer> freqTable = (ArrayList<Integer>) codedInput.readObject(); //read header with frequency table
-		//System.out.println("FrequencyTable is="+freqTable);
-		HuffmanTreeNode root= buildEncodingTree(freqTable);
-		decodeData(codedInput, root, output);
+		if (format == Format.BLOCKS || format == Format.INDEXED) {
+			decodeBlocks(inputFileName, format, output.getChannel());
+		} else {
+			decode(in, output);
+		}
+		output.close();
+		in.close();
 		System.out.println("Number of bytes in input file: " + Files.size(Paths.get(inputFileName)));
 		 System.out.println("Number of bytes in output file: " + Files.size(Paths.get(outputFileName)));
 	}
 	
+	/**
+	 * Method that decodes only the bytes offset to offset+length-1 of the original of a BLOCKS or INDEXED file:
+	 * the BlockIndex at the end of the file gives the blocks holding these bytes and where their codes start,
+	 * so only those blocks are read and decoding stops at the last byte asked for
+	 * @param inputFileName - a file encoded in BLOCKS or INDEXED format
+	 * @param offset - position in the original of the first byte to decode
+	 * @param length - number of bytes to decode
+	 * @return the bytes offset to offset+length-1 of the original
+	 * @throws IOException - indicates problems with the input file, or a file that is not in BLOCKS or INDEXED format
+	 */
+	public byte[] decodeRange(String inputFileName, long offset, int length) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ)) {
+			Format format = (channel.size() > 0) ? Format.forTag(readFully(channel, 0, 1).get() & 0xFF) : null;
+			if (format != Format.BLOCKS && format != Format.INDEXED) throw new IOException(inputFileName + " is not in BLOCKS or INDEXED format");
+			BlockIndex index = readBlockIndex(channel);
+			if (offset < 0 || length < 0 || offset + length > index.originalLength)
+				throw new IllegalArgumentException("Range " + offset + "+" + length + " is outside the original of " + index.originalLength + " bytes");
+			FlatTree root = (format == Format.INDEXED) ? readIndexedTree(channel, index) : null;
+			DecodeTable decodeTable = (root != null && tableDecoding) ? new DecodeTable(root, true) : null;
+			
+			ByteArrayOutputStream output = new ByteArrayOutputStream(length);
+			int first = (int) (offset / index.blockSize); // blocks all have blockSize bytes but the last
+			long end = offset + length;
+			for (int k = first; k < index.blockCount() && index.outputOffset[k] < end; k++) {
+				decodeBlock(channel, index, k, root, decodeTable, output, Math.min(end, index.outputOffset[k + 1]) - index.outputOffset[k]);
+			}
+			int skip = (int) (offset - index.outputOffset[Math.min(first, index.blockCount())]);
+			return Arrays.copyOfRange(output.toByteArray(), skip, skip + length);
+		}
+	}
 	
-}
-
+	/**
+	 * Method that implements Huffman encoding of an input stream of any length, such as standard input, in STREAM format
+	 * Input is read in frames of at most blockSize bytes (see setBlockSize); each frame is written as its length (int),
+	 * the length of its encoding (int) and its encoding in CANONICAL format, and a frame of length 0 ends the output
+	 * Only one frame is kept in memory, and output is flushed after every frame; neither stream is closed
+	 * @param input - the stream to be encoded (compressed), read until it ends
+	 * @param output - the stream where the encoded frames are written to
+	 * @throws IOException indicates problems with input/output streams
+	 */
+	public void encode(InputStream input, OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+		out.write(Format.STREAM.tag);
+		byte[] frame = new byte[blockSize];
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(blockSize / 2);
+		int length;
+		while ((length = input.readNBytes(frame, 0, frame.length)) > 0) {
+			encoded.reset();
+			encodeCanonical(new ByteBuffer[] { ByteBuffer.wrap(frame, 0, length) }, encoded);
+			out.writeInt(length);
+			out.writeInt(encoded.size());
+			encoded.writeTo(out);
+			out.flush();
+		}
+		out.writeInt(0); // end of stream
+		out.flush();
+	}
 	
-    
\ No newline at end of file
+	/**
+	 * Method that implements Huffman decoding of an encoded input stream in SERIALIZED, CANONICAL, STREAM, ADAPTIVE, CONTEXT, WORDS, LZ, BWT, INTERLEAVED, PACKED or STORED format
+	 * (BLOCKS and INDEXED files are decoded by decode(String, String) as they need to be read out of order)
+	 * @param input - the encoded stream, read up to the end of the encoded data
+	 * @param output - the stream where the decoded bytes are written to; it is flushed but not closed
+	 * @throws IOException - indicates problems with input/output streams, or input that is not valid
+	 * @throws ClassNotFoundException - handles case where a SERIALIZED input does not contain correct object at header
+	 */
+	public void decode(InputStream input, OutputStream output) throws IOException, ClassNotFoundException {
+		PushbackInputStream in = new PushbackInputStream(input, 1);
+		int tag = in.read();
+		Format format = Format.forTag(tag);
+		if (format == Format.CANONICAL) {
+			decodeCanonical(in, output, new FlatTree(257), new DecodeTable());
+		} else if (format == Format.STREAM) {
+			decodeStream(in, output);
+		} else if (format == Format.ADAPTIVE) {
+			decodeAdaptive(in, output);
+		} else if (format == Format.CONTEXT) {
+			decodeContext(in, output);
+		} else if (format == Format.WORDS) {
+			decodeWords(in, output);
+		} else if (format == Format.LZ) {
+			decodeLZ(in, output);
+		} else if (format == Format.BWT || format == Format.INTERLEAVED) {
+			decodeFrames(in, output, format);
+		} else if (format == Format.PACKED) {
+			decodePacked(new InBitStream(in), output, Long.MAX_VALUE);
+		} else if (format == Format.STORED) {
+			in.transferTo(output);
+		} else if (format == Format.SERIALIZED) {
+			in.unread(tag);
+			ObjectInputStream codedInput= new ObjectInputStream(in);
+			ArrayList<Integer> freqTable = (ArrayList<Integer>) codedInput.readObject(); //read header with frequency table
+			FlatTree tree = new FlatTree(257);
+			tree.build(buildEncodingTree(freqTable));
+			InBitStream inputBitStream = new InBitStream(codedInput);
+			if (tableDecoding) decodeDataTable(inputBitStream, new DecodeTable(tree, true), output, Long.MAX_VALUE);
+			else decodeData(inputBitStream, tree, output, Long.MAX_VALUE);
+		} else if (format != null) {
+			throw new IOException(format + " format can only be decoded from a file");
+		} else {
+			throw new IOException("Input is not Huffman encoded");
+		}
+		output.flush();
+	}
+	
+	/**
+	 * Largest number of bytes written by encode(ByteBuffer, ByteBuffer) for an input of n bytes, to size output buffers
+	 * @param n number of bytes to encode
+	 * @return n + 1, as inputs that coding would not make smaller are stored with a 1 byte header
+	 */
+	public static int maxEncodedLength(int n) {
+		return n + 1;
+	}
+	
+	/**
+	 * Method that implements Huffman encoding between buffers, for instance to reuse buffers between calls:
+	 * the bytes of src from its position to its limit are encoded in CANONICAL format (or PACKED or STORED format
+	 * if that is smaller, see encodeCanonical) into dst from its position; nothing is read from or written to files
+	 * @param src - the bytes to encode, heap or direct; its position is moved to its limit
+	 * @param dst - the buffer where the encoded bytes are written to; its position is moved past them
+	 * @return the number of bytes written to dst, at most maxEncodedLength(src.remaining())
+	 * @throws IOException - never for buffers, declared by the bit streams
+	 * @throws BufferOverflowException - if dst has less room than the encoded bytes need
+	 */
+	public int encode(ByteBuffer src, ByteBuffer dst) throws IOException {
+		if (bufferEncode == null) bufferEncode = new EncodeScratch(257);
+		EncodeScratch scratch = bufferEncode;
+		int start = dst.position();
+		ByteBuffer[] input = scratch.input; // src itself: the steps below read from its position to its limit without moving them
+		input[0] = src;
+		long[] freq = countFrequencies(input, scratch);
+		int[] codeLength = buildCanonicalCodeLengths(freq, scratch);
+		int width = packedWidth(freq, canonicalBytes(freq, codeLength));
+		if (width > 0) {
+			encodePacked(input, freq, width, scratch.bitStream.attach(dst), scratch.codeTable);
+			src.position(src.limit());
+		} else if (codeLength == null) {
+			if (dst.remaining() < src.remaining() + 1) throw new BufferOverflowException();
+			dst.put((byte) Format.STORED.tag);
+			dst.put(src);
+		} else {
+			OutBitStream bitStream = scratch.bitStream.attach(dst);
+			bitStream.writeBits(Format.CANONICAL.tag, 8);
+			writeCodeLengths(bitStream, codeLength);
+			encodeData(input, buildCodeTable(codeLength, scratch.codeTable, scratch.nextCode), bitStream);
+			src.position(src.limit());
+		}
+		input[0] = null; // the scratch does not keep src
+		return dst.position() - start;
+	}
+	
+	/**
+	 * Method that implements Huffman decoding between buffers, for inputs encoded by encode(ByteBuffer, ByteBuffer):
+	 * the bytes of src from its position to its limit are decoded into dst from its position, with a lookup table
+	 * (the tree, table and other work arrays are kept by this object and reused on each call, so an object should not be
+	 * used by several threads at once); nothing is read from or written to files
+	 * @param src - the encoded bytes, in CANONICAL, PACKED or STORED format, heap or direct; its position is moved to its limit
+	 * @param dst - the buffer where the decoded bytes are written to; its position is moved past them
+	 * (up to 7 bytes between its new position and its limit may be overwritten too)
+	 * @return the number of bytes written to dst
+	 * @throws IOException - indicates src is not valid or is in another format
+	 * @throws BufferOverflowException - if dst has less room than the decoded bytes need
+	 */
+	public int decode(ByteBuffer src, ByteBuffer dst) throws IOException {
+		int start = dst.position();
+		Format format = src.hasRemaining() ? Format.forTag(src.get() & 0xFF) : null;
+		if (format == Format.STORED) {
+			dst.put(src);
+		} else if (format == Format.PACKED) {
+			if (bufferDecode == null) bufferDecode = new DecodeScratch();
+			DecodeScratch scratch = bufferDecode;
+			InBitStream inputBitStream = scratch.bitStream.attach(src);
+			int width = readPackedHeader(inputBitStream, scratch.alphabet, scratch.expand);
+			long length = readLong(inputBitStream);
+			if (length < 0) throw new IOException("Invalid header, length " + length);
+			if (dst.remaining() < length) throw new BufferOverflowException();
+			decodePackedBytes(inputBitStream, scratch.expand, width, dst, (int) length); // straight into dst
+			if (inputBitStream.pastEnd()) throw new EOFException("Encoded data ended before its last character");
+			src.position(src.limit());
+		} else if (format == Format.CANONICAL) {
+			if (bufferDecode == null) bufferDecode = new DecodeScratch();
+			DecodeScratch scratch = bufferDecode;
+			InBitStream inputBitStream = scratch.bitStream.attach(src);
+			scratch.tree.buildCanonical(readCodeLengths(inputBitStream, scratch.codeLength));
+			scratch.table.build(scratch.tree, true);
+			int[] table = scratch.table.table;
+			long[] multi = scratch.table.multi;
+			boolean littleEndian = dst.order() == ByteOrder.LITTLE_ENDIAN;
+			while (true) {
+				int bits = inputBitStream.peekBits(TABLE_BITS);
+				long characters = multi[bits];
+				if (characters >>> 52 != 0) { // one or more whole codes found in table
+					inputBitStream.skipBits((int) (characters >>> 48) & 0xF);
+					if (inputBitStream.pastEnd()) throw new EOFException("Encoded data ended before end-of-file character");
+					int n = (int) (characters >>> 52);
+					if (dst.remaining() >= 8) { // store all 8 bytes at once, those past the characters are overwritten later
+						dst.putLong(dst.position(), littleEndian ? characters : Long.reverseBytes(characters));
+						dst.position(dst.position() + n);
+					} else {
+						for (; n > 0; n--, characters >>>= 8) dst.put((byte) characters);
+					}
+					continue;
+				}
+				int entry = table[bits];
+				if (entry < 0) throw new IOException("Encoded data contains an invalid code"); // codes are at most LENGTH_LIMIT = TABLE_BITS long
+				inputBitStream.skipBits(entry >>> 16);
+				if (inputBitStream.pastEnd()) throw new EOFException("Encoded data ended before end-of-file character");
+				if ((entry & 0xFFFF) == 256) break;
+				dst.put((byte) entry);
+			}
+			src.position(src.limit());
+		} else {
+			throw new IOException("Input is not in CANONICAL, PACKED or STORED format");
+		}
+		return dst.position() - start;
+	}
+	
+	/**
+	 * Decodes the frames of a STREAM format input whose format byte was already read
+	 * @param input input parameter, the frames following the format byte
+	 * @param output output parameter where the decoded bytes will be written to (left open)
+	 * @throws IOException indicates I/O errors for input/output streams, or input that is not valid
+	 */
+	private void decodeStream(InputStream input, OutputStream output) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		byte[] encoded = new byte[0];
+		FlatTree tree = new FlatTree(257);           // rebuilt in place for each frame
+		DecodeTable decodeTable = new DecodeTable();
+		int length;
+		while ((length = in.readInt()) != 0) {
+			int encodedLength = in.readInt();
+			// frames have at most blockSize <= MAP_SEGMENT bytes; Huffman codes average at most 9 bits per byte, plus header and padding
+			if (length < 0 || length > MAP_SEGMENT || encodedLength <= 0 || encodedLength > length + length / 8 + 1024L) throw new IOException("Invalid frame header");
+			if (encoded.length < encodedLength) encoded = new byte[encodedLength];
+			in.readFully(encoded, 0, encodedLength);
+			InputStream frame = new ByteArrayInputStream(encoded, 0, encodedLength);
+			int tag = frame.read();
+			if (tag == Format.STORED.tag) {
+				if (encodedLength - 1 != length) throw new IOException("Frame has wrong length");
+				output.write(encoded, 1, length);
+			} else if (tag == Format.CANONICAL.tag) {
+				if (decodeCanonical(frame, output, tree, decodeTable) != length) throw new IOException("Frame has wrong length");
+			} else if (tag == Format.PACKED.tag) {
+				if (decodePacked(new InBitStream(frame), output, Long.MAX_VALUE) != length) throw new IOException("Frame has wrong length");
+			} else {
+				throw new IOException("Invalid frame");
+			}
+		}
+	}
+}
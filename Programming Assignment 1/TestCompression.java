@@ -1,8 +1,21 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Stream;
 
 /**
@@ -12,21 +25,38 @@ import java.util.stream.Stream;
  */
 public class TestCompression {
 
+   private static final Set<String> FILE_COMMANDS = Set.of("E", "D", "B", "R"); // commands reading args[1] and writing args[2]
+
 
    /**
     * Helper method to take inputs from command line 
     * 
     * @param args contains commands in 3 types of format:
-    *             E inputfile outputfile 
+    *             E inputfile outputfile [format [blocksize]]
     *                  Usage example: java TestCompression E genes.txt genes.huf
     *                  E is for encoding inputfile into outputfile
+    *                  format is optional, one of the names in Huffman.Format (default SERIALIZED)
+    *                  blocksize is optional, the bytes per block or frame of the formats using them, see Huffman.setBlockSize
     *             D inputfile outputfile
     *                  Usage example: java TestCompression D genes.huf genesRecover.txt
     *                  D is for decoding inputfile into outputfile
-    *             T testfile
+    *             B inputfile outputfile
+    *                  Usage example: java TestCompression B genes.huf genesRecover.txt
+    *                  B is for decoding inputfile into outputfile with both decoders (tree walk and lookup table),
+    *                  reporting the time taken by each and whether their outputs are identical
+    *             R inputfile outputfile offset length
+    *                  Usage example: java TestCompression R app.huf slice.txt 1048576 4096
+    *                  R is for decoding only bytes offset to offset+length-1 of a BLOCKS or INDEXED inputfile into outputfile
+    *             P E or P D
+    *                  Usage example: java TestCompression P E < app.log > app.huf
+    *                  P is for encoding (E) or decoding (D) standard input to standard output in STREAM format,
+    *                  without reading the whole input first
+    *             T testfile [threads]
     *                  Usage example: java TestCompression T tests.txt
     *                  T goes to file that contains lines of type E and D one per line
     *                  we provided 'tests.txt' with the assignment
+    *                  blank lines and lines starting with # are skipped
+    *                  with threads, lines run as parallel jobs on that many threads, see runBatch
     *             
     * @throws IOException 
     * @throws ClassNotFoundException 
@@ -34,22 +64,44 @@ public class TestCompression {
    private static void testInput(String[] args) throws IOException, ClassNotFoundException {
    	Huffman myHuff=new Huffman();
    	
-   	if (args.length <2) { System.out.println("Usage: TestCompression E/D inputfile outputfile\nUsage: TestCompression T testfile");
+   	if (args.length <2) { System.out.println("Usage: TestCompression E inputfile outputfile [format [blocksize]]\nUsage: TestCompression D/B inputfile outputfile"
+   	                                        + "\nUsage: TestCompression R inputfile outputfile offset length\nUsage: TestCompression P E/D\nUsage: TestCompression T testfile [threads]");
    	                        return;
    	}
    	switch (args[0]) {
    	   case "E": case "e": 
-   		   myHuff.encode(args[1], args[2]);
+   		   if (args.length > 4) myHuff.setBlockSize(Integer.parseInt(args[4]));
+   		   if (args.length > 3) myHuff.encode(args[1], args[2], Huffman.Format.valueOf(args[3].toUpperCase()));
+   		   else myHuff.encode(args[1], args[2]);
    		   //System.out.println("Encoding complete");
            break;
    	   case "D": case "d":
    		   myHuff.decode(args[1], args[2]);
    		   //System.out.println("Decoding complete");
    	       break;
+   	   case "B": case "b":
+   		   benchmarkDecoders(myHuff, args[1], args[2]);
+   	       break;
+   	   case "R": case "r":
+   		   if (args.length < 5) { System.out.println("Usage: TestCompression R inputfile outputfile offset length");
+   		                          return;
+   		   }
+   		   Files.write(Paths.get(args[2]), myHuff.decodeRange(args[1], Long.parseLong(args[3]), Integer.parseInt(args[4])));
+   	       break;
+   	   case "P": case "p":
+   		   OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out));
+   		   if (args[1].equalsIgnoreCase("E")) myHuff.encode(System.in, out);
+   		   else myHuff.decode(System.in, out);
+   		   out.flush();
+   	       break;
    	   case "T": case "t":
+   		   if (args.length > 2) {
+   			   runBatch(args[1], Integer.parseInt(args[2]));
+   			   break;
+   		   }
    		   Path path = Paths.get(args[1]);
    	       try (Stream<String> line = Files.lines(path)) {
-   	             line.forEach(row -> {try {
+   	             line.filter(row -> !isComment(row)).forEach(row -> {try {
 					testInput(row.split(" "));
 				} catch (Exception e) {
 					System.out.println("Error in split");
@@ -61,7 +113,7 @@ public class TestCompression {
    	       System.out.println("Test file was completed.");
    	       break;
             
-   	     default: System.out.println("Error: first argument must be E, D or T.");
+   	     default: System.out.println("Error: first argument must be E, D, B, R, P or T.");
    	     return;
     }
 	
@@ -69,6 +121,113 @@ public class TestCompression {
    }
 
 
+   /**
+    * Decodes inputfile twice, first walking the Huffman tree bit by bit and then using the lookup table decoder
+    * @param myHuff the Huffman object used for decoding
+    * @param inputFileName file encoded by Huffman.encode
+    * @param outputFileName file where decoded output is written (by both decoders in turn)
+    * @throws IOException
+    * @throws ClassNotFoundException
+    */
+   private static void benchmarkDecoders(Huffman myHuff, String inputFileName, String outputFileName) throws IOException, ClassNotFoundException {
+   	myHuff.setTableDecoding(false);
+   	long start = System.nanoTime();
+   	myHuff.decode(inputFileName, outputFileName);
+   	long treeTime = System.nanoTime() - start;
+   	byte[] treeOutput = Files.readAllBytes(Paths.get(outputFileName));
+   	
+   	myHuff.setTableDecoding(true);
+   	start = System.nanoTime();
+   	myHuff.decode(inputFileName, outputFileName);
+   	long tableTime = System.nanoTime() - start;
+   	byte[] tableOutput = Files.readAllBytes(Paths.get(outputFileName));
+   	
+   	System.out.println("Tree decoder:  " + treeTime / 1000 + " microseconds");
+   	System.out.println("Table decoder: " + tableTime / 1000 + " microseconds");
+   	System.out.println("Outputs identical: " + Arrays.equals(treeOutput, tableOutput));
+   }
+
+
+   /**
+    * Tells whether a line of a test file is to be skipped
+    * @param line a line of a test file
+    * @return true if line is blank or starts with #
+    */
+   private static boolean isComment(String line) {
+   	return line.isBlank() || line.trim().startsWith("#");
+   }
+
+
+   /**
+    * Runs the lines of a test file as jobs on a pool of threads. A line waits for the earlier lines that write the file
+    * it reads, or that read or write the file it writes (lines E, D, B and R read args[1] and write args[2]);
+    * other lines run in parallel. Reports the time of each job, then the number of jobs, the total time and the throughput
+    * @param fileName test file with one command per line
+    * @param threads number of threads running jobs
+    * @throws IOException if the test file cannot be read
+    */
+   private static void runBatch(String fileName, int threads) throws IOException {
+   	if (threads <= 0) throw new IllegalArgumentException("Number of threads must be positive, not " + threads);
+   	List<String> lines = new ArrayList<>();
+   	for (String line : Files.readAllLines(Paths.get(fileName))) if (!isComment(line)) lines.add(line.trim());
+   	ExecutorService pool = Executors.newFixedThreadPool(threads);
+   	HashMap<Path, CompletableFuture<Void>> lastWriter = new HashMap<>();   // last job writing each file
+   	HashMap<Path, List<CompletableFuture<Void>>> readers = new HashMap<>(); // jobs reading each file since it was last written
+   	List<CompletableFuture<Void>> jobs = new ArrayList<>();
+   	long[] time = new long[lines.size()];  // nanoseconds taken by each job
+   	long[] bytes = new long[lines.size()]; // size of the file read by each job
+   	
+   	long start = System.nanoTime();
+   	for (int i = 0; i < lines.size(); i++) {
+   		String[] command = lines.get(i).split(" ");
+   		boolean usesFiles = command.length > 2 && FILE_COMMANDS.contains(command[0].toUpperCase());
+   		Path input = usesFiles ? Paths.get(command[1]).toAbsolutePath().normalize() : null;
+   		Path output = usesFiles ? Paths.get(command[2]).toAbsolutePath().normalize() : null;
+   		List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+   		if (usesFiles) {
+   			if (lastWriter.containsKey(input)) dependencies.add(lastWriter.get(input));
+   			if (lastWriter.containsKey(output)) dependencies.add(lastWriter.get(output));
+   			dependencies.addAll(readers.getOrDefault(output, List.of()));
+   		}
+   		int job = i;
+   		CompletableFuture<Void> future = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+   			long jobStart = System.nanoTime();
+   			try {
+   				testInput(command);
+   				if (usesFiles) bytes[job] = Files.size(input);
+   			} catch (IOException | ClassNotFoundException e) {
+   				throw new CompletionException(e);
+   			}
+   			time[job] = System.nanoTime() - jobStart;
+   		}, pool);
+   		if (usesFiles) {
+   			readers.computeIfAbsent(input, f -> new ArrayList<>()).add(future);
+   			lastWriter.put(output, future);
+   			readers.remove(output);
+   		}
+   		jobs.add(future);
+   	}
+   	
+   	CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).handle((result, error) -> null).join(); // report once all jobs ended
+   	int failed = 0;
+   	long totalBytes = 0;
+   	System.out.println("\nBatch " + fileName + " on " + threads + " threads:");
+   	for (int i = 0; i < jobs.size(); i++) {
+   		try {
+   			jobs.get(i).join();
+   			totalBytes += bytes[i];
+   			System.out.println("  " + lines.get(i) + ": " + time[i] / 1000000 + " ms");
+   		} catch (CompletionException e) {
+   			failed++;
+   			System.out.println("  " + lines.get(i) + ": FAILED (" + e.getCause() + ")");
+   		}
+   	}
+   	pool.shutdown();
+   	double seconds = (System.nanoTime() - start) / 1e9;
+   	System.out.printf("%d jobs (%d failed) in %.3f s, %.1f jobs/s, %.2f MB/s read%n",
+   			jobs.size(), failed, seconds, jobs.size() / seconds, totalBytes / 1e6 / seconds);
+   }
+
 
 public static void main(String[] args) throws IOException, ClassNotFoundException { 
   	 Huffman myHuff=new Huffman();
@@ -80,9 +239,11 @@ public static void main(String[] args) throws IOException, ClassNotFoundExceptio
   		 // interactive part typed as input
   		 while (true) { 
            System.out.println("\nCommand Formats:");
-           System.out.println("E <inputfile> <outputfile>");
+           System.out.println("E <inputfile> <outputfile> [format]");
            System.out.println("D <inputfile> <outputfile>");
-           System.out.println("T <testfile_with_commands>");
+           System.out.println("B <inputfile> <outputfile>");
+           System.out.println("R <inputfile> <outputfile> <offset> <length>");
+           System.out.println("T <testfile_with_commands> [threads]");
            System.out.println("or type Q for quiting\n");
            System.out.print("Enter command > ");
            Scanner input = new Scanner(System.in);